@@ -0,0 +1,89 @@
+package crptapi;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpRequest;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import com.sun.net.httpserver.HttpServer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/* Полный путь createDocument: построение HttpRequest (тело + заголовки) и отправка на заглушку
+ в том же процессе. Лимит заведомо не ограничивает, меряется стоимость самого клиента.
+ Запуск: mvn -Pjmh test-compile exec:exec -Djmh.args="CreateDocumentBenchmark -rf json -rff target/jmh-result.json"
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class CreateDocumentBenchmark {
+
+    @Param({"1", "100"})
+    int productCount;
+
+    HttpServer server;
+    CrptApi api;
+    CrptApi.Document document;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", exchange -> {
+            exchange.getRequestBody().readAllBytes();
+            byte[] body = "{\"value\":\"doc-uuid\"}".getBytes();
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.setExecutor(Executors.newFixedThreadPool(8));
+        server.start();
+
+        api = CrptApi.builder(TimeUnit.SECONDS, 100_000)
+                .baseUri(URI.create("http://127.0.0.1:" + server.getAddress().getPort()))
+                .build();
+        document = Documents.sample(productCount);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        api.close();
+        server.stop(0);
+    }
+
+    @Benchmark
+    public HttpRequest buildRequest() throws IOException {
+        CrptApi.RequestBody body = api.buildRequestBody(document, "test_signature_1234567890");
+        HttpRequest request = api.buildRequest(document, body, "token");
+        body.recycle();
+        return request;
+    }
+
+    @Benchmark
+    @Threads(1)
+    public CrptApi.CreateDocumentResult send_1() throws Exception {
+        return api.createDocument(document, "test_signature_1234567890");
+    }
+
+    @Benchmark
+    @Threads(8)
+    public CrptApi.CreateDocumentResult send_8() throws Exception {
+        return api.createDocument(document, "test_signature_1234567890");
+    }
+}
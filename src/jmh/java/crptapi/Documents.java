@@ -0,0 +1,40 @@
+package crptapi;
+
+// Тестовые документы для бенчмарков
+final class Documents {
+
+    private Documents() {
+    }
+
+    static CrptApi.Document sample(int productCount) {
+        CrptApi.Document document = new CrptApi.Document();
+        document.setDescription("Test document");
+        document.setDoc_id("test_doc_123");
+        document.setDoc_status("DRAFT");
+        document.setDoc_type("LP_INTRODUCE_GOODS");
+        document.setOwner_inn("1234567894");
+        document.setParticipant_inn("0987654329");
+        document.setProducer_inn("1122334450");
+        document.setProduction_date("2024-01-01");
+        document.setProduction_type("PRODUCTION");
+        document.setReg_date("2024-01-01");
+        document.setReg_number("REG123");
+
+        CrptApi.Product[] products = new CrptApi.Product[productCount];
+        for (int i = 0; i < productCount; i++) {
+            CrptApi.Product product = new CrptApi.Product();
+            product.setCertificate_document("CERT123");
+            product.setCertificate_document_date("2024-01-01");
+            product.setCertificate_document_number("CERT123456");
+            product.setOwner_inn("1234567894");
+            product.setProducer_inn("1122334450");
+            product.setProduction_date("2024-01-01");
+            product.setTnved_code("6203420000");
+            product.setUit_code("010460043993125621JgXJ5.T\u001d91EE06\u001d92abc" + i);
+            product.setUitu_code("UITU" + i);
+            products[i] = product;
+        }
+        document.setProducts(products);
+        return document;
+    }
+}
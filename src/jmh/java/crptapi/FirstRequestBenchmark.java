@@ -0,0 +1,98 @@
+package crptapi;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.util.concurrent.TimeUnit;
+
+import com.sun.net.httpserver.HttpServer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/* Задержка первого запроса нового клиента без прогрева и после CrptApi.warmUp(). Каждая итерация -
+ новый клиент и одиночный замер, JMH выводит перцентили (p50/p99) по итерациям.
+ По умолчанию поднимается локальная заглушка на HTTP/1.1 (в JDK нет HTTP/2-сервера);
+ для HTTP/2 укажите свою заглушку: -Djmh.args="FirstRequestBenchmark -p baseUri=https://localhost:8443"
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 20)
+@Measurement(iterations = 200)
+public class FirstRequestBenchmark {
+
+    @Param({""})
+    String baseUri;
+
+    HttpServer server;
+    URI target;
+    CrptApi.Document document;
+    CrptApi cold;
+    CrptApi warm;
+
+    @Setup(Level.Trial)
+    public void startServer() throws IOException {
+        document = Documents.sample(1);
+        if (!baseUri.isEmpty()) {
+            target = URI.create(baseUri);
+            return;
+        }
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", exchange -> {
+            exchange.getRequestBody().readAllBytes();
+            if ("HEAD".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(200, -1);
+                exchange.close();
+                return;
+            }
+            byte[] body = "{\"value\":\"doc-uuid\"}".getBytes();
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.start();
+        target = URI.create("http://127.0.0.1:" + server.getAddress().getPort());
+    }
+
+    @Setup(Level.Iteration)
+    public void newClients() {
+        cold = CrptApi.builder(TimeUnit.SECONDS, 1000).baseUri(target).build();
+        warm = CrptApi.builder(TimeUnit.SECONDS, 1000).baseUri(target).build();
+        warm.warmUp().join();
+    }
+
+    @TearDown(Level.Iteration)
+    public void closeClients() {
+        cold.close();
+        warm.close();
+    }
+
+    @TearDown(Level.Trial)
+    public void stopServer() {
+        if (server != null) {
+            server.stop(0);
+        }
+    }
+
+    @Benchmark
+    public void coldFirstRequest() throws Exception {
+        cold.createDocument(document, "test_signature_1234567890");
+    }
+
+    @Benchmark
+    public void warmedFirstRequest() throws Exception {
+        warm.createDocument(document, "test_signature_1234567890");
+    }
+}
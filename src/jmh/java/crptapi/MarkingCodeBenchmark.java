@@ -0,0 +1,87 @@
+package crptapi;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/* Разбор кодов маркировки: CrptApi.MarkingCode по строке и по ASCII-байтам против регулярного выражения,
+ которым GTIN и серийный номер обычно достают в прикладном коде. Результат - операций (кодов) в микросекунду
+ на поток. Коды разные, чтобы не мерить разбор одной и той же строки из кеша.
+ Запуск: mvn -Pjmh test-compile exec:exec -Djmh.args="MarkingCodeBenchmark -prof gc"
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class MarkingCodeBenchmark {
+
+    static final int CODES = 1024;
+    static final Pattern REGEX = Pattern.compile("^01(\\d{14})21([^\\u001d]{1,20})(?:\\u001d|$)");
+
+    String[] strings;
+    byte[][] bytes;
+    CrptApi.MarkingCode code;
+
+    @Setup
+    public void setUp() {
+        strings = new String[CODES];
+        bytes = new byte[CODES][];
+        for (int i = 0; i < CODES; i++) {
+            CrptApi.Product product = Documents.sample(1).getProducts()[0];
+            strings[i] = product.getUit_code().replace("abc0", "abc" + i)
+                    .replace("JgXJ5.T", "JgXJ5." + (char) ('A' + i % 26));
+            bytes[i] = strings[i].getBytes(StandardCharsets.US_ASCII);
+        }
+        code = new CrptApi.MarkingCode();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(CODES)
+    public long parseString() {
+        long sum = 0;
+        for (String uit : strings) {
+            if (code.parse(uit)) {
+                sum += code.getGtin().toLong() + code.getSerial().length();
+            }
+        }
+        return sum;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(CODES)
+    public long parseBytes() {
+        long sum = 0;
+        for (byte[] uit : bytes) {
+            if (code.parse(uit, 0, uit.length)) {
+                sum += code.getGtin().toLong() + code.getSerial().length();
+            }
+        }
+        return sum;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(CODES)
+    public long regex() {
+        long sum = 0;
+        for (String uit : strings) {
+            Matcher matcher = REGEX.matcher(uit);
+            if (matcher.find()) {
+                sum += Long.parseLong(matcher.group(1)) + matcher.group(2).length();
+            }
+        }
+        return sum;
+    }
+}
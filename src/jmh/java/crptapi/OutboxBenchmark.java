@@ -0,0 +1,86 @@
+package crptapi;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/* Скорость enqueue в долговременную очередь на локальном диске, цель - не меньше 100k документов в секунду.
+ Лимит 1 в час, поэтому фоновая отправка стоит и меряется только запись в журнал (вместе с сериализацией).
+ Каталог очереди создается заново на каждую итерацию, чтобы журнал и очередь в памяти не росли весь прогон.
+ Запуск: mvn -Pjmh test-compile exec:exec -Djmh.args="OutboxBenchmark"
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class OutboxBenchmark {
+
+    @Param({"1", "100"})
+    int productCount;
+
+    CrptApi api;
+    CrptApi.Document document;
+    Path directory;
+    CrptApi.Outbox outbox;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        api = CrptApi.builder(TimeUnit.HOURS, 1)
+                .baseUri(URI.create("http://127.0.0.1:9"))
+                .build();
+        document = Documents.sample(productCount);
+    }
+
+    @TearDown(Level.Trial)
+    public void closeApi() {
+        api.close();
+    }
+
+    @Setup(Level.Iteration)
+    public void openOutbox() throws IOException {
+        directory = Files.createTempDirectory("outbox-benchmark");
+        outbox = api.openOutbox(directory, result -> {
+        });
+    }
+
+    @TearDown(Level.Iteration)
+    public void deleteOutbox() throws IOException {
+        outbox.close();
+        try (Stream<Path> files = Files.list(directory)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(directory);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public long enqueue_1() throws CrptApi.ApiException {
+        return outbox.enqueue(document, "test_signature_1234567890");
+    }
+
+    @Benchmark
+    @Threads(4)
+    public long enqueue_4() throws CrptApi.ApiException {
+        return outbox.enqueue(document, "test_signature_1234567890");
+    }
+}
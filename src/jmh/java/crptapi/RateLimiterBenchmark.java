@@ -0,0 +1,153 @@
+package crptapi;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/* Сравнение стоимости получения разрешения: прежнее окно на Semaphore + LinkedBlockingQueue<Instant>
+ против SlidingWindowRateLimiter. Окно в одну наносекунду, чтобы мерить накладные расходы
+ самого лимитера, а не сон до следующего окна.
+ crptApi_* - полный путь acquirePermission/releasePermission в CrptApi: при 1 потоке очередь пуста
+ и работает быстрый путь, при 8 потоках на 4 слота часть вызовов ждет в очереди приоритетов.
+ Запуск: mvn -Pjmh test-compile exec:exec -Djmh.args="RateLimiterBenchmark -prof gc"
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class RateLimiterBenchmark {
+
+    @Param({"10", "1000"})
+    int requestLimit;
+
+    CrptApi.RateLimiter slidingWindow;
+    QueueWindowRateLimiter queueWindow;
+    CrptApi api;
+
+    @Setup
+    public void setUp() {
+        slidingWindow = new CrptApi.SlidingWindowRateLimiter(TimeUnit.NANOSECONDS, requestLimit);
+        queueWindow = new QueueWindowRateLimiter(TimeUnit.NANOSECONDS, requestLimit);
+        api = CrptApi.builder(TimeUnit.NANOSECONDS, requestLimit).maxConcurrency(4).build();
+    }
+
+    @TearDown
+    public void tearDown() {
+        api.close();
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void slidingWindow_1() throws InterruptedException {
+        slidingWindow.acquire();
+    }
+
+    @Benchmark
+    @Threads(8)
+    public void slidingWindow_8() throws InterruptedException {
+        slidingWindow.acquire();
+    }
+
+    @Benchmark
+    @Threads(64)
+    public void slidingWindow_64() throws InterruptedException {
+        slidingWindow.acquire();
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void crptApi_1() throws InterruptedException {
+        api.acquirePermission(CrptApi.Priority.NORMAL);
+        api.releasePermission();
+    }
+
+    @Benchmark
+    @Threads(8)
+    public void crptApi_8() throws InterruptedException {
+        api.acquirePermission(CrptApi.Priority.NORMAL);
+        api.releasePermission();
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void queueWindow_1() throws InterruptedException {
+        queueWindow.acquire();
+        queueWindow.release();
+    }
+
+    @Benchmark
+    @Threads(8)
+    public void queueWindow_8() throws InterruptedException {
+        queueWindow.acquire();
+        queueWindow.release();
+    }
+
+    @Benchmark
+    @Threads(64)
+    public void queueWindow_64() throws InterruptedException {
+        queueWindow.acquire();
+        queueWindow.release();
+    }
+
+    // Прежняя реализация acquirePermission/releasePermission из CrptApi без изменений
+    static final class QueueWindowRateLimiter {
+        private final TimeUnit timeUnit;
+        private final int requestLimit;
+        private final Semaphore semaphore;
+        private final BlockingQueue<Instant> requestTimestamps;
+
+        QueueWindowRateLimiter(TimeUnit timeUnit, int requestLimit) {
+            this.timeUnit = timeUnit;
+            this.requestLimit = requestLimit;
+            this.semaphore = new Semaphore(requestLimit, true);
+            this.requestTimestamps = new LinkedBlockingQueue<>(requestLimit);
+        }
+
+        void acquire() throws InterruptedException {
+            semaphore.acquire();
+
+            Instant now = Instant.now();
+            Instant oldestTimestamp = requestTimestamps.peek();
+
+            while (oldestTimestamp != null &&
+                    Duration.between(oldestTimestamp, now).toMillis() > timeUnit.toMillis(1)) {
+                requestTimestamps.poll();
+                oldestTimestamp = requestTimestamps.peek();
+            }
+
+            while (requestTimestamps.size() >= requestLimit) {
+                Instant first = requestTimestamps.take();
+                long elapsed = Duration.between(first, now).toMillis();
+                long waitTime = timeUnit.toMillis(1) - elapsed;
+
+                if (waitTime > 0) {
+                    Thread.sleep(waitTime);
+                    now = Instant.now();
+                }
+            }
+
+            requestTimestamps.offer(now);
+        }
+
+        void release() {
+            semaphore.release();
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package crptapi;
+
+import java.io.IOException;
+import java.net.http.HttpRequest;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/* Построение тела запроса: прежнее двойное кодирование (документ в строку, затем обертка со строкой,
+ затем UTF-8 в BodyPublishers.ofString) против однопроходной записи CrptApi.buildRequestBody в буферы из пула.
+ *Published - готовое тело, вычитанное подписчиком так, как его читает HttpClient при отправке:
+ прежние срезы BodyPublishers.ofByteArray (копия на каждую подписку) против срезов самих буферов пула.
+ Запуск: mvn -Pjmh test-compile exec:exec -Djmh.args="RequestBodyBenchmark -prof gc"
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class RequestBodyBenchmark {
+
+    @Param({"1", "100", "10000"})
+    int productCount;
+
+    CrptApi api;
+    ObjectMapper objectMapper;
+    CrptApi.Document document;
+    CrptApi.RequestBody body;
+    byte[] bytes;
+
+    @Setup
+    public void setUp() throws IOException {
+        api = new CrptApi(TimeUnit.SECONDS, 1);
+        objectMapper = new ObjectMapper().setSerializationInclusion(JsonInclude.Include.NON_NULL);
+        document = Documents.sample(productCount);
+        body = api.buildRequestBody(document, "test_signature_1234567890");
+        bytes = body.toByteArray();
+    }
+
+    @TearDown
+    public void tearDown() {
+        body.recycle();
+        api.close();
+    }
+
+    @Benchmark
+    public String doubleEncoding() throws JsonProcessingException {
+        Map<String, Object> request = new LinkedHashMap<>();
+        request.put("document_format", "MANUAL");
+        request.put("product_document", objectMapper.writeValueAsString(document));
+        request.put("signature", "test_signature_1234567890");
+        request.put("type", "LP_INTRODUCE_GOODS");
+        return objectMapper.writeValueAsString(request);
+    }
+
+    @Benchmark
+    public byte[] doubleEncodingUtf8() throws JsonProcessingException {
+        return doubleEncoding().getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public long singlePass() throws IOException {
+        CrptApi.RequestBody body = api.buildRequestBody(document, "test_signature_1234567890");
+        long size = body.publisher().contentLength();
+        body.recycle();
+        return size;
+    }
+
+    @Benchmark
+    public long ofByteArrayPublished() {
+        int size = CrptApi.BufferPool.BUFFER_SIZE;
+        HttpRequest.BodyPublisher[] slices = new HttpRequest.BodyPublisher[(bytes.length + size - 1) / size];
+        for (int i = 0; i < slices.length; i++) {
+            slices[i] = HttpRequest.BodyPublishers.ofByteArray(bytes, i * size, Math.min(size, bytes.length - i * size));
+        }
+        return drain(HttpRequest.BodyPublishers.concat(slices));
+    }
+
+    @Benchmark
+    public long singlePassPublished() {
+        return drain(body.publisher());
+    }
+
+    // Вычитывает публикатор синхронно, запрашивая по одному срезу, как HttpClient
+    static long drain(HttpRequest.BodyPublisher publisher) {
+        long[] size = new long[1];
+        publisher.subscribe(new Flow.Subscriber<ByteBuffer>() {
+            private Flow.Subscription subscription;
+
+            @Override
+            public void onSubscribe(Flow.Subscription subscription) {
+                this.subscription = subscription;
+                subscription.request(1);
+            }
+
+            @Override
+            public void onNext(ByteBuffer item) {
+                size[0] += item.remaining();
+                subscription.request(1);
+            }
+
+            @Override
+            public void onError(Throwable throwable) {
+            }
+
+            @Override
+            public void onComplete() {
+            }
+        });
+        return size[0];
+    }
+}
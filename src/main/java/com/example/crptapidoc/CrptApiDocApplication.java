@@ -4,6 +4,8 @@ import crptapi.CrptApi;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
 
+import java.util.Collections;
+import java.util.List;
 import java.util.concurrent.TimeUnit;
 
 @SpringBootApplication
@@ -21,9 +23,9 @@ public class CrptApiDocApplication {
         document.setDoc_status("DRAFT");
         document.setDoc_type("LP_INTRODUCE_GOODS");
         document.setImportRequest(false);
-        document.setOwner_inn("1234567890");
-        document.setParticipant_inn("0987654321");
-        document.setProducer_inn("1122334455");
+        document.setOwner_inn("1234567894");
+        document.setParticipant_inn("0987654329");
+        document.setProducer_inn("1122334450");
         document.setProduction_date("2024-01-01");
         document.setProduction_type("PRODUCTION");
         document.setReg_date("2024-01-01");
@@ -34,8 +36,8 @@ public class CrptApiDocApplication {
         product1.setCertificate_document("CERT123");
         product1.setCertificate_document_date("2024-01-01");
         product1.setCertificate_document_number("CERT123456");
-        product1.setOwner_inn("1234567890");
-        product1.setProducer_inn("1122334455");
+        product1.setOwner_inn("1234567894");
+        product1.setProducer_inn("1122334450");
         product1.setProduction_date("2024-01-01");
         product1.setTnved_code("6203420000");
         product1.setUit_code("UIT123456");
@@ -46,27 +48,25 @@ public class CrptApiDocApplication {
 
         String signature = "test_signature_1234567890";
 
-        // Тестируем несколько вызовов для проверки ограничения скорости
-        for (int i = 0; i < 15; i++) {
-            try {
-                System.out.println("Отправка документа " + (i + 1) + "...");
-                api.createDocument(document, signature);
-                System.out.println("Документ " + (i + 1) + " отправлен успешно");
-            } catch (InterruptedException e) {
-                System.err.println("Операция прервана: " + e.getMessage());
-                Thread.currentThread().interrupt();
-                break;
-            } catch (CrptApi.ApiException e) {
-                System.err.println("Ошибка API при отправке документа " + (i + 1) + ": " + e.getMessage());
-            }
-
-            // Небольшая пауза между запросами
-            try {
-                Thread.sleep(100);
-            } catch (InterruptedException e) {
-                Thread.currentThread().interrupt();
-                break;
+        // Тестируем пакетную отправку для проверки ограничения скорости
+        List<CrptApi.Document> documents = Collections.nCopies(15, document);
+        try {
+            System.out.println("Отправка " + documents.size() + " документов...");
+            List<CrptApi.SubmissionResult> results = api.submitAll(documents, doc -> signature);
+            for (int i = 0; i < results.size(); i++) {
+                CrptApi.SubmissionResult result = results.get(i);
+                if (result.isSuccess()) {
+                    System.out.println("Документ " + (i + 1) + " отправлен успешно");
+                } else {
+                    System.err.println("Ошибка API при отправке документа " + (i + 1) + ": "
+                            + result.getError().getMessage());
+                }
             }
+        } catch (InterruptedException e) {
+            System.err.println("Операция прервана: " + e.getMessage());
+            Thread.currentThread().interrupt();
+        } finally {
+            api.close();
         }
 
         System.out.println("Тестирование завершено");
@@ -0,0 +1,67 @@
+package com.example.crptapidoc;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import crptapi.CrptApi;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+/* Привязка метрик CrptApi к Micrometer. Таймеры публикуют гистограммы перцентилей, таймер HTTP-запросов
+ заводится на каждый статус ответа один раз и дальше берется из массива без поиска в реестре.
+ Использование: CrptApi.builder(...).metrics(metrics).build(), затем metrics.bindTo(api) для gauge-метрик
+ */
+public class MicrometerCrptApiMetrics implements CrptApi.Metrics {
+
+    private final MeterRegistry registry;
+    private final Timer permitWait;
+    private final Timer serialization;
+    private final AtomicReferenceArray<Timer> roundTrips = new AtomicReferenceArray<>(600);
+
+    public MicrometerCrptApiMetrics(MeterRegistry registry) {
+        this.registry = registry;
+        this.permitWait = Timer.builder("crpt.api.permit.wait")
+                .description("Ожидание разрешения лимитера и свободного слота")
+                .publishPercentileHistogram()
+                .register(registry);
+        this.serialization = Timer.builder("crpt.api.serialization")
+                .description("Построение тела запроса")
+                .publishPercentileHistogram()
+                .register(registry);
+    }
+
+    public void bindTo(CrptApi api) {
+        Gauge.builder("crpt.api.in.flight", api, CrptApi::getInFlightRequests)
+                .description("Выполняющиеся HTTP-запросы")
+                .register(registry);
+        Gauge.builder("crpt.api.permits.available", api, CrptApi::getAvailablePermits)
+                .description("Разрешения, которые лимитер готов выдать сейчас")
+                .register(registry);
+    }
+
+    @Override
+    public void permitWait(long nanos) {
+        permitWait.record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public void serialization(long nanos) {
+        serialization.record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public void roundTrip(long nanos, int statusCode) {
+        int index = statusCode > 0 && statusCode < 600 ? statusCode : 0;
+        Timer timer = roundTrips.get(index);
+        if (timer == null) {
+            timer = Timer.builder("crpt.api.http.requests")
+                    .description("Время HTTP-запроса к API")
+                    .tag("status", index == 0 ? "IO_ERROR" : String.valueOf(index))
+                    .publishPercentileHistogram()
+                    .register(registry);
+            roundTrips.set(index, timer);
+        }
+        timer.record(nanos, TimeUnit.NANOSECONDS);
+    }
+}
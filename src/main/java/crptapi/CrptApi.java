@@ -1,401 +1,4198 @@
 package crptapi;
 
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.ConnectException;
 import java.net.URI;
+import java.net.URLEncoder;
 import java.net.http.HttpClient;
+import java.net.http.HttpConnectTimeoutException;
+import java.net.http.HttpHeaders;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
 import java.time.Duration;
-import java.time.Instant;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Flow;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.zip.CRC32C;
+import javax.sql.DataSource;
 
 import com.fasterxml.jackson.annotation.JsonInclude;
-import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.io.CharTypes;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
 
 /* Это реализация класса CrptApi для работы с API Честного знака с поддержкой ограничения запросов. Класс включает:
 
-Ограничение запросов: Использует Semaphore и очередь временных меток для контроля частоты запросов
+Ограничение запросов: Подключаемый RateLimiter, по умолчанию - скользящее окно на CAS, без мониторов и ReentrantLock.
+Адаптивный режим снижает частоту по ответам 429/503 и Retry-After и поднимает обратно по успешным.
+Для нескольких узлов с одним аккаунтом - DistributedRateLimiter поверх общего хранилища (БД или память процесса)
+Число одновременных HTTP-запросов ограничивается отдельно (Builder.maxConcurrency)
 
 Thread-safe: Все методы синхронизированы для безопасной работы в многопоточной среде
 
+Асинхронность: createDocumentAsync не занимает поток ни на ожидание лимита, ни на HTTP-запрос
+
+Приоритеты: URGENT, NORMAL, BULK - взвешенно-справедливая очередь перед лимитером, срочные документы
+не ждут за пакетной выгрузкой
+
+Дедупликация: повторы документа с тем же doc_id и содержимым склеиваются с идущей отправкой
+и подавляются в течение заданного времени после успешной
+
+Пакетная отправка: submitAll готовит документы наперед и держит занятыми все слоты лимита.
+С DocumentSigner документы сериализуются и подписываются в пуле потоков параллельно с отправкой
+предыдущих, подпись считается по тем же байтам, что уходят в тело запроса
+
+Настройка: CrptApi.builder(timeUnit, requestLimit) - адрес API, таймауты, версия HTTP, executor, ObjectMapper
+
+Закрытие: CrptApi реализует AutoCloseable, close() останавливает таймер допуска, пул подписи и executor виртуальных потоков
+
+Виртуальные потоки: в режиме ExecutionMode.VIRTUAL_THREADS (Java 21+) HttpClient работает на виртуальных потоках,
+а ожидание лимита в createDocument, вызванном из виртуального потока, паркует его без занятия потока-носителя
+
+Аутентификация: AuthTokenProvider, токен по УКЭП кешируется и обновляется в фоне до истечения срока
+
 HTTP клиент: Использует современный HttpClient из Java 11
 
-JSON сериализация: Использует Jackson для преобразования объектов в JSON
+JSON сериализация: Использует Jackson для преобразования объектов в JSON, тело запроса пишется за один проход
+сразу в UTF-8 байты из пула буферов, без промежуточных строк
+
+Товарная группа: определяется по кодам ТН ВЭД товаров через префиксный справочник из ресурса,
+документ со смешанными группами отправляется частями по группам через createMixedDocument
+
+Расширяемость: Структура классов позволяет легко добавлять новые методы API
+
+Долговременная очередь: openOutbox - документы пишутся в отображенный в память журнал и отправляются
+фоновым потоком, неотправленные переживают перезапуск
+
+Статусы документов: openStatusTracker опрашивает статус созданных документов до финального в пределах
+общего лимита с низким приоритетом, сроки опросов - в колесе таймеров
+
+Повторы: RetryPolicy с decorrelated jitter; каждый повтор заново проходит лимитер и ограничен бюджетом повторов
+
+Коды маркировки: MarkingCode разбирает GS1 DataMatrix из uit_code/uitu_code без аллокаций
+
+Проверка документов: ИНН, даты, товары и коды ТН ВЭД проверяются до очереди к лимитеру,
+документ с ошибками не тратит разрешение и получает ValidationException со всеми нарушениями
+
+Обработка ошибок: Собственный исключительный класс ApiException
+
+*/
+public class CrptApi implements AutoCloseable {
+
+    private static final String DEFAULT_PRODUCT_GROUP = "clothes";
+
+    private final int requestLimit;
+    private final int maxConcurrency;
+    private final Semaphore semaphore;
+    private final BufferPool bufferPool = new BufferPool(256);
+    private final RateLimiter rateLimiter;
+    private final Admission admission = new Admission();
+    private final AuthTokenProvider authTokenProvider;
+    private final Metrics metrics;
+    private final RetryPolicy retryPolicy;
+    private final RetryBudget retryBudget;
+    private final Deduplicator deduplicator;
+    private final boolean validateDocuments;
+    private final DocumentSigner documentSigner;
+    private final ExecutorService signingExecutor;
+    private final ScheduledExecutorService admissionTimer;
+    private final ExecutorService virtualThreadExecutor;
+    private final HttpClient httpClient;
+    private final ObjectMapper objectMapper;
+    private final Duration requestTimeout;
+    private final String createDocumentUri;
+    private final String documentInfoUri;
+    private final URI warmUpUri;
+
+    public CrptApi(TimeUnit timeUnit, int requestLimit) {
+        this(builder(timeUnit, requestLimit));
+    }
+
+    private CrptApi(Builder builder) {
+        this.requestLimit = builder.requestLimit;
+        this.maxConcurrency = builder.maxConcurrency;
+        this.semaphore = new Semaphore(builder.maxConcurrency, true);
+        this.metrics = builder.metrics;
+        this.retryPolicy = builder.retryPolicy;
+        this.retryBudget = new RetryBudget(builder.retryPolicy, builder.requestLimit);
+        this.deduplicator = builder.deduplicationTtl != null
+                ? new Deduplicator(builder.deduplicationTtl, builder.deduplicationCapacity) : null;
+        this.validateDocuments = builder.validateDocuments;
+        this.documentSigner = builder.documentSigner;
+        this.signingExecutor = builder.documentSigner != null ? newSigningExecutor(builder.signingThreads) : null;
+        this.rateLimiter = builder.rateLimiter != null
+                ? builder.rateLimiter : new SlidingWindowRateLimiter(builder.timeUnit, builder.requestLimit);
+        this.admissionTimer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "crpt-api-admission");
+            thread.setDaemon(true);
+            return thread;
+        });
+        HttpClient.Builder httpClientBuilder = HttpClient.newBuilder()
+                .version(builder.httpVersion)
+                .connectTimeout(builder.connectTimeout);
+        // Executor из Builder принадлежит вызывающему и в close не закрывается
+        this.virtualThreadExecutor = builder.executor == null && builder.executionMode == ExecutionMode.VIRTUAL_THREADS
+                ? newVirtualThreadExecutor() : null;
+        if (builder.executor != null) {
+            httpClientBuilder.executor(builder.executor);
+        } else if (virtualThreadExecutor != null) {
+            httpClientBuilder.executor(virtualThreadExecutor);
+        }
+        this.httpClient = httpClientBuilder.build();
+        this.objectMapper = builder.objectMapper != null ? builder.objectMapper : new ObjectMapper();
+        this.requestTimeout = builder.requestTimeout;
+        this.createDocumentUri = endpoint(builder.baseUri, "/api/v3/lk/documents/create");
+        this.documentInfoUri = endpoint(builder.baseUri, "/api/v4/true-api/doc/");
+        this.warmUpUri = URI.create(endpoint(builder.baseUri, "/"));
+        if (builder.authTokenProvider != null) {
+            this.authTokenProvider = builder.authTokenProvider;
+        } else if (builder.authSigner != null) {
+            this.authTokenProvider = new CertificateAuthTokenProvider(httpClient, builder.baseUri, builder.authSigner,
+                    Duration.ofHours(10), Duration.ofHours(1), builder.requestTimeout);
+        } else {
+            this.authTokenProvider = AuthTokenProvider.fixed("your_auth_token_here");
+        }
+    }
+
+    public static Builder builder(TimeUnit timeUnit, int requestLimit) {
+        return new Builder(timeUnit, requestLimit);
+    }
+
+    /* Открывает соединение с сервером API заранее: TCP, TLS и согласование HTTP/2 не ложатся на первый запрос.
+     При HTTP/2 все последующие запросы мультиплексируются в этом соединении. Статус ответа не важен
+     */
+    public CompletableFuture<Void> warmUp() {
+        HttpRequest request = HttpRequest.newBuilder(warmUpUri)
+                .method("HEAD", HttpRequest.BodyPublishers.noBody())
+                .timeout(requestTimeout)
+                .build();
+        return httpClient.sendAsync(request, HttpResponse.BodyHandlers.discarding()).thenApply(response -> null);
+    }
+
+    // Периодический warmUp не дает закрыть простаивающее соединение по таймауту
+    private void scheduleKeepAlive(Duration interval) {
+        long nanos = interval.toNanos();
+        admissionTimer.scheduleWithFixedDelay(this::warmUp, nanos, nanos, TimeUnit.NANOSECONDS);
+    }
+
+    /* Останавливает собственные потоки клиента: таймер допуска и keep-alive, пул подписи
+     и executor виртуальных потоков. После close клиент не используется
+     */
+    @Override
+    public void close() {
+        admissionTimer.shutdownNow();
+        if (signingExecutor != null) {
+            signingExecutor.shutdownNow();
+        }
+        if (virtualThreadExecutor != null) {
+            virtualThreadExecutor.shutdown();
+        }
+    }
+
+    // Сколько запросов сейчас выполняется (занятые слоты)
+    public int getInFlightRequests() {
+        return maxConcurrency - semaphore.availablePermits();
+    }
+
+    // Сколько разрешений лимитер готов выдать прямо сейчас
+    public int getAvailablePermits() {
+        return rateLimiter.availablePermits();
+    }
+
+    public CreateDocumentResult createDocument(Document document, String signature)
+            throws InterruptedException, ApiException {
+        return createDocument(document, signature, Priority.NORMAL);
+    }
+
+    /* При включенной дедупликации повтор документа, который уже отправляется или недавно отправлен успешно,
+     не отправляется заново: вызов ждет результата первой отправки
+     */
+    public CreateDocumentResult createDocument(Document document, String signature, Priority priority)
+            throws InterruptedException, ApiException {
+        return createDocument(document, serialize(document, signature), priority);
+    }
+
+    /* Подпись через DocumentSigner из Builder.documentSigner: документ сериализуется один раз,
+     подписывается и записывается в тело из тех же байтов
+     */
+    public CreateDocumentResult createDocument(Document document) throws InterruptedException, ApiException {
+        return createDocument(document, Priority.NORMAL);
+    }
+
+    public CreateDocumentResult createDocument(Document document, Priority priority)
+            throws InterruptedException, ApiException {
+        return createDocument(document, serializeSigned(document), priority);
+    }
+
+    private CreateDocumentResult createDocument(Document document, RequestBody body, Priority priority)
+            throws InterruptedException, ApiException {
+        try {
+            if (deduplicator == null) {
+                return send(document, body, priority);
+            }
+            CompletableFuture<CreateDocumentResult> result = new CompletableFuture<>();
+            CompletableFuture<CreateDocumentResult> shared = deduplicator.claim(document, body, result);
+            if (shared != null) {
+                try {
+                    return shared.get();
+                } catch (ExecutionException e) {
+                    throw new ApiException("Duplicate of a failed submission", e.getCause());
+                }
+            }
+            try {
+                CreateDocumentResult created = send(document, body, priority);
+                result.complete(created);
+                return created;
+            } catch (InterruptedException | ApiException | RuntimeException e) {
+                result.completeExceptionally(e);
+                throw e;
+            }
+        } finally {
+            body.recycle();
+        }
+    }
+
+    /* Каждая попытка заново получает токен и разрешение лимитера, тело запроса сериализуется один раз.
+     Ответ последней попытки обрабатывается как обычно
+     */
+    private CreateDocumentResult send(Document document, RequestBody body, Priority priority)
+            throws InterruptedException, ApiException {
+        retryBudget.deposit();
+        long delayNanos = 0;
+        for (int attempt = 1; ; attempt++) {
+            String token = getAuthToken();
+            acquirePermission(priority);
+
+            HttpResponse<byte[]> response = null;
+            IOException failure = null;
+            long sentAt = System.nanoTime();
+            long roundTrip = 0;
+            try {
+                response = httpClient.send(buildRequest(document, body, token), HttpResponse.BodyHandlers.ofByteArray());
+                roundTrip = System.nanoTime() - sentAt;
+                metrics.roundTrip(roundTrip, response.statusCode());
+                rateLimiter.onResponse(response.statusCode(), retryAfterNanos(response));
+            } catch (IOException e) {
+                metrics.roundTrip(System.nanoTime() - sentAt, 0);
+                failure = e;
+            } finally {
+                releasePermission();
+            }
+
+            delayNanos = retryDelay(attempt, delayNanos, response, failure);
+            if (delayNanos < 0) {
+                if (failure != null) {
+                    throw new ApiException("HTTP request error", failure);
+                }
+                return handleResponse(response, roundTrip, attempt);
+            }
+            TimeUnit.NANOSECONDS.sleep(delayNanos);
+        }
+    }
+
+    /* Неблокирующий вариант createDocument. Задержка до разрешения лимитера отсчитывается таймером,
+     а если все слоты на выполнение заняты, отправка ставится в очередь и стартует при освобождении слота.
+     Ошибки приходят в future как ApiException
+     */
+    public CompletableFuture<CreateDocumentResult> createDocumentAsync(Document document, String signature) {
+        return createDocumentAsync(document, signature, Priority.NORMAL);
+    }
+
+    public CompletableFuture<CreateDocumentResult> createDocumentAsync(Document document, String signature,
+                                                                    Priority priority) {
+        return submitAsync(document, signature, priority, null);
+    }
+
+    // Сериализация и подпись DocumentSigner идут в пуле подписи, вызывающий поток не занимается
+    public CompletableFuture<CreateDocumentResult> createDocumentAsync(Document document) {
+        return createDocumentAsync(document, Priority.NORMAL);
+    }
+
+    public CompletableFuture<CreateDocumentResult> createDocumentAsync(Document document, Priority priority) {
+        return submitSignedAsync(document, priority, null);
+    }
+
+    /* Пакетная отправка. Вызывающий поток подписывает и сериализует документы наперед: ожидающих отправки
+     не больше двух окон лимита, а уже отправленные не считаются, поэтому медленные ответы не тормозят пакет.
+     Каждый запрос уходит ровно в момент выдачи разрешения. Возвращает результаты в порядке исходной коллекции
+     */
+    public List<SubmissionResult> submitAll(Collection<Document> documents, Function<Document, String> signer)
+            throws InterruptedException {
+        return submitAll(documents, signer, Priority.NORMAL);
+    }
+
+    // Для ночных выгрузок - Priority.BULK, чтобы пакет не задерживал срочные документы
+    public List<SubmissionResult> submitAll(Collection<Document> documents, Function<Document, String> signer,
+                                            Priority priority) throws InterruptedException {
+        Semaphore lookahead = new Semaphore(requestLimit * 2);
+        List<CompletableFuture<CreateDocumentResult>> futures = new ArrayList<>(documents.size());
+
+        for (Document document : documents) {
+            lookahead.acquire();
+            AtomicBoolean released = new AtomicBoolean();
+            Runnable release = () -> {
+                if (released.compareAndSet(false, true)) {
+                    lookahead.release();
+                }
+            };
+            CompletableFuture<CreateDocumentResult> future;
+            try {
+                future = submitAsync(document, signer.apply(document), priority, release);
+            } catch (RuntimeException e) {
+                future = CompletableFuture.failedFuture(new ApiException("Document signing error", e));
+            }
+            future.whenComplete((ignored, error) -> release.run());
+            futures.add(future);
+        }
+        return collectResults(documents, futures);
+    }
+
+    private static List<SubmissionResult> collectResults(Collection<Document> documents,
+                                                         List<CompletableFuture<CreateDocumentResult>> futures) {
+        List<SubmissionResult> results = new ArrayList<>(futures.size());
+        int index = 0;
+        for (Document document : documents) {
+            CompletableFuture<CreateDocumentResult> future = futures.get(index++);
+            CreateDocumentResult result = null;
+            Throwable error = null;
+            try {
+                result = future.join();
+            } catch (CompletionException e) {
+                error = unwrap(e);
+            }
+            results.add(new SubmissionResult(document, result, error));
+        }
+        return results;
+    }
+
+    /* Конвейерная пакетная отправка с подписью через DocumentSigner. Документы сериализуются и подписываются
+     в пуле подписи (Builder.documentSigner), пока предыдущие ждут разрешения лимитера или ответа.
+     Наперед готовится не больше двух окон лимита, как и в submitAll с подписью вызывающим потоком,
+     поэтому очередь пула ограничена, а подпись не обгоняет отправку больше чем на два окна
+     */
+    public List<SubmissionResult> submitAll(Collection<Document> documents) throws InterruptedException {
+        return submitAll(documents, Priority.NORMAL);
+    }
+
+    public List<SubmissionResult> submitAll(Collection<Document> documents, Priority priority)
+            throws InterruptedException {
+        requireSigner();
+        Semaphore lookahead = new Semaphore(requestLimit * 2);
+        List<CompletableFuture<CreateDocumentResult>> futures = new ArrayList<>(documents.size());
+
+        for (Document document : documents) {
+            lookahead.acquire();
+            AtomicBoolean released = new AtomicBoolean();
+            Runnable release = () -> {
+                if (released.compareAndSet(false, true)) {
+                    lookahead.release();
+                }
+            };
+            CompletableFuture<CreateDocumentResult> future = submitSignedAsync(document, priority, release);
+            future.whenComplete((ignored, error) -> release.run());
+            futures.add(future);
+        }
+        return collectResults(documents, futures);
+    }
+
+    /* Документ с товарами нескольких товарных групп отправляется отдельными документами по группам
+     (см. Document.splitByProductGroup), одновременно в пределах лимита. Подпись считается для каждой части,
+     результаты - по одному на часть в порядке групп
+     */
+    public List<SubmissionResult> createMixedDocument(Document document, Function<Document, String> signer)
+            throws InterruptedException {
+        return createMixedDocument(document, signer, Priority.NORMAL);
+    }
+
+    public List<SubmissionResult> createMixedDocument(Document document, Function<Document, String> signer,
+                                                      Priority priority) throws InterruptedException {
+        return submitAll(document.splitByProductGroup(), signer, priority);
+    }
+
+    /* Открывает долговременную очередь отправки в каталоге directory и сразу начинает отправлять
+     неподтвержденные документы, оставшиеся от прошлого запуска. Результат каждой отправки получает listener
+     */
+    public Outbox openOutbox(Path directory, Consumer<SubmissionResult> listener) throws IOException {
+        return new Outbox(this, directory, Duration.ofMillis(10), Outbox.SEGMENT_SIZE, listener);
+    }
+
+    /* Открывает отслеживание статусов созданных документов: первый опрос через секунду после track,
+     дальше чем старше документ, тем реже, но не реже раза в минуту. Без финального статуса за час
+     future завершается ошибкой
+     */
+    public StatusTracker openStatusTracker() {
+        return openStatusTracker(Duration.ofSeconds(1), Duration.ofMinutes(1), Duration.ofHours(1));
+    }
+
+    public StatusTracker openStatusTracker(Duration minInterval, Duration maxInterval, Duration timeout) {
+        if (minInterval.isNegative() || minInterval.isZero() || maxInterval.compareTo(minInterval) < 0) {
+            throw new IllegalArgumentException("Poll intervals must be positive and minInterval <= maxInterval");
+        }
+        return new StatusTracker(this, minInterval, maxInterval, timeout, 512);
+    }
+
+    // onSent вызывается в момент отправки HTTP-запроса, если до нее дошло
+    private CompletableFuture<CreateDocumentResult> submitAsync(Document document, String signature,
+                                                                Priority priority, Runnable onSent) {
+        RequestBody body;
+        try {
+            body = serialize(document, signature);
+        } catch (ApiException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        return submitAsync(document, body, priority, onSent);
+    }
+
+    private CompletableFuture<CreateDocumentResult> submitSignedAsync(Document document, Priority priority,
+                                                                      Runnable onSent) {
+        requireSigner();
+        CompletableFuture<RequestBody> signed = new CompletableFuture<>();
+        signingExecutor.execute(() -> {
+            try {
+                signed.complete(serializeSigned(document));
+            } catch (ApiException | RuntimeException e) {
+                signed.completeExceptionally(e);
+            }
+        });
+        return signed.thenCompose(body -> submitAsync(document, body, priority, onSent));
+    }
+
+    private CompletableFuture<CreateDocumentResult> submitAsync(Document document, RequestBody body,
+                                                                Priority priority, Runnable onSent) {
+        CompletableFuture<CreateDocumentResult> result = new CompletableFuture<>();
+        if (deduplicator != null) {
+            CompletableFuture<CreateDocumentResult> shared = deduplicator.claim(document, body, result);
+            if (shared != null) {
+                body.recycle();
+                if (onSent != null) {
+                    onSent.run();
+                }
+                return shared.copy();
+            }
+        }
+        result.whenComplete((ignored, error) -> body.recycle());
+        retryBudget.deposit();
+        attemptAsync(new PendingSend(document, body, priority, result, onSent));
+        return result;
+    }
+
+    // Одна попытка: токен, затем слот на выполнение и место в окне лимитера через очередь приоритетов
+    private void attemptAsync(PendingSend send) {
+        authTokenProvider.token().whenComplete((token, error) -> {
+            if (error != null) {
+                send.result.completeExceptionally(new ApiException("Authentication error", unwrap(error)));
+                return;
+            }
+            // Исключение из колбэка whenComplete никуда не попадает, поэтому future завершается здесь
+            try {
+                send.request = buildRequest(send.document, send.body, token);
+                send.attempt++;
+                send.queuedAt = System.nanoTime();
+                if (tryAcquirePermission()) {
+                    sendAsync(send);
+                } else {
+                    admission.enqueue(send.priority, () -> sendAsync(send));
+                }
+            } catch (RuntimeException e) {
+                send.result.completeExceptionally(new ApiException("Request building error", e));
+            }
+        });
+    }
+
+    private void sendAsync(PendingSend send) {
+        long sentAt = System.nanoTime();
+        metrics.permitWait(sentAt - send.queuedAt);
+        if (send.onSent != null) {
+            send.onSent.run();
+        }
+        CompletableFuture<CreateDocumentResult> result = send.result;
+        CompletableFuture<HttpResponse<byte[]>> sent;
+        try {
+            sent = httpClient.sendAsync(send.request, HttpResponse.BodyHandlers.ofByteArray());
+        } catch (RuntimeException e) {
+            releasePermission();
+            result.completeExceptionally(new ApiException("HTTP request error", e));
+            return;
+        }
+        sent.whenComplete((response, error) -> {
+            long roundTrip = System.nanoTime() - sentAt;
+            metrics.roundTrip(roundTrip, response != null ? response.statusCode() : 0);
+            if (response != null) {
+                rateLimiter.onResponse(response.statusCode(), retryAfterNanos(response));
+            }
+            releasePermission();
+            Throwable failure = error != null ? unwrap(error) : null;
+            long delayNanos = retryDelay(send.attempt, send.retryDelayNanos, response, failure);
+            if (delayNanos >= 0) {
+                send.retryDelayNanos = delayNanos;
+                admissionTimer.schedule(() -> attemptAsync(send), delayNanos, TimeUnit.NANOSECONDS);
+                return;
+            }
+            if (failure != null) {
+                result.completeExceptionally(new ApiException("HTTP request error", failure));
+                return;
+            }
+            try {
+                result.complete(handleResponse(response, roundTrip, send.attempt));
+            } catch (ApiException e) {
+                result.completeExceptionally(e);
+            }
+        });
+    }
+
+    /* GET-запрос для StatusTracker. Проходит ту же очередь приоритетов, лимитер и слоты на выполнение,
+     что и создание документов, поэтому опрос статусов не выходит за общий лимит. Без повторов
+     */
+    private CompletableFuture<HttpResponse<byte[]>> getAsync(URI uri, Priority priority) {
+        CompletableFuture<HttpResponse<byte[]>> result = new CompletableFuture<>();
+        authTokenProvider.token().whenComplete((token, error) -> {
+            if (error != null) {
+                result.completeExceptionally(new ApiException("Authentication error", unwrap(error)));
+                return;
+            }
+            try {
+                HttpRequest request = HttpRequest.newBuilder(uri)
+                        .timeout(requestTimeout)
+                        .header("Authorization", "Bearer " + token)
+                        .GET()
+                        .build();
+                admission.enqueue(priority, () -> getAsync(request, result));
+            } catch (RuntimeException e) {
+                result.completeExceptionally(new ApiException("Request building error", e));
+            }
+        });
+        return result;
+    }
+
+    private void getAsync(HttpRequest request, CompletableFuture<HttpResponse<byte[]>> result) {
+        CompletableFuture<HttpResponse<byte[]>> sent;
+        try {
+            sent = httpClient.sendAsync(request, HttpResponse.BodyHandlers.ofByteArray());
+        } catch (RuntimeException e) {
+            releasePermission();
+            result.completeExceptionally(new ApiException("HTTP request error", e));
+            return;
+        }
+        sent.whenComplete((response, failure) -> {
+            if (response != null) {
+                rateLimiter.onResponse(response.statusCode(), retryAfterNanos(response));
+            }
+            releasePermission();
+            if (failure != null) {
+                result.completeExceptionally(new ApiException("HTTP request error", unwrap(failure)));
+            } else {
+                result.complete(response);
+            }
+        });
+    }
+
+    // Пауза перед повтором в наносекундах или -1, если политика или бюджет повторов его не допускают
+    private long retryDelay(int attempt, long previousDelayNanos, HttpResponse<?> response, Throwable failure) {
+        int statusCode = response != null ? response.statusCode() : 0;
+        if (!retryPolicy.isRetryable(attempt, statusCode, failure) || !retryBudget.tryWithdraw()) {
+            return -1;
+        }
+        long retryAfter = response != null ? retryAfterNanos(response) : -1;
+        return Math.max(retryPolicy.nextDelay(previousDelayNanos), retryAfter);
+    }
+
+    // Проверка документа идет здесь, до очереди к лимитеру и до дедупликации
+    private RequestBody serialize(Document document, String signature) throws ApiException {
+        if (validateDocuments) {
+            DocumentValidator.validate(document);
+        }
+        long start = System.nanoTime();
+        try {
+            RequestBody body = buildRequestBody(document, signature);
+            metrics.serialization(System.nanoTime() - start);
+            return body;
+        } catch (IOException e) {
+            throw new ApiException("JSON serialization error", e);
+        }
+    }
+
+    /* Документ сериализуется Jackson один раз в буфер потока, подписывается по этим байтам и затем
+     копируется в тело с экранированием. Экранирование побайтное, поэтому тело совпадает с buildRequestBody
+     для той же подписи, а подписаны ровно те байты, которые сервер получит в product_document
+     */
+    private RequestBody serializeSigned(Document document) throws ApiException {
+        requireSigner();
+        if (validateDocuments) {
+            DocumentValidator.validate(document);
+        }
+        long start = System.nanoTime();
+        DocumentBuffer json = DocumentBuffer.get();
+        try {
+            objectMapper.writeValue(json, document);
+            long signStart = System.nanoTime();
+            String signature;
+            try {
+                signature = documentSigner.sign(json.array(), 0, json.size());
+            } catch (GeneralSecurityException | RuntimeException e) {
+                throw new ApiException("Document signing error", e);
+            }
+            long signEnd = System.nanoTime();
+            RequestBody body = new RequestBody(bufferPool);
+            try {
+                writeRequestBody(body, json, signature);
+            } catch (IOException | RuntimeException e) {
+                body.recycle();
+                throw e;
+            }
+            metrics.serialization(signStart - start + System.nanoTime() - signEnd);
+            return body;
+        } catch (IOException e) {
+            throw new ApiException("JSON serialization error", e);
+        } finally {
+            json.release();
+        }
+    }
+
+    private void requireSigner() {
+        if (documentSigner == null) {
+            throw new IllegalStateException("Document signer is not configured");
+        }
+    }
+
+    private static Throwable unwrap(Throwable error) {
+        return error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+    }
+
+    /* Буферы тела возвращаются в пул только после получения ответа, когда HttpClient их уже прочитал */
+    HttpRequest buildRequest(Document document, RequestBody body, String token) {
+        return HttpRequest.newBuilder()
+                .uri(URI.create(createDocumentUri + "?pg="
+                        + URLEncoder.encode(document.getProductGroup(), StandardCharsets.UTF_8)))
+                .timeout(requestTimeout)
+                .header("Content-Type", "application/json")
+                .header("Authorization", "Bearer " + token)
+                .POST(body.publisher())
+                .build();
+    }
+
+    // Retry-After в секундах или в виде HTTP-даты; -1, если заголовка нет или он не разобран
+    static long retryAfterNanos(HttpResponse<?> response) {
+        String value = response.headers().firstValue("Retry-After").orElse(null);
+        if (value == null) {
+            return -1;
+        }
+        try {
+            return TimeUnit.SECONDS.toNanos(Long.parseLong(value.trim()));
+        } catch (NumberFormatException e) {
+            try {
+                ZonedDateTime at = ZonedDateTime.parse(value.trim(), DateTimeFormatter.RFC_1123_DATE_TIME);
+                return Math.max(0, Duration.between(ZonedDateTime.now(at.getZone()), at).toNanos());
+            } catch (DateTimeParseException ignored) {
+                return -1;
+            }
+        }
+    }
+
+    private CreateDocumentResult handleResponse(HttpResponse<byte[]> response, long roundTripNanos, int attempts)
+            throws ApiException {
+        if (response.statusCode() != 200) {
+            throw new ApiException("API request failed with status: " + response.statusCode() +
+                    ", body: " + new String(response.body(), StandardCharsets.UTF_8));
+        }
+        try {
+            return new CreateDocumentResult(parseDocumentId(response.body()), response.statusCode(),
+                    Duration.ofNanos(roundTripNanos), attempts, response.headers());
+        } catch (IOException e) {
+            throw new ApiException("Invalid response body", e);
+        }
+    }
+
+    /* Ответ на создание документа: {"value":"<uuid документа>"}. Потоковый парсер читает поля верхнего уровня
+     до value и пропускает остальные, не строя дерево. null, если тело пустое или value нет
+     */
+    private String parseDocumentId(byte[] body) throws IOException {
+        try (JsonParser parser = objectMapper.getFactory().createParser(body)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                return null;
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String name = parser.currentName();
+                JsonToken value = parser.nextToken();
+                if ("value".equals(name) && value == JsonToken.VALUE_STRING) {
+                    return parser.getText();
+                }
+                parser.skipChildren();
+            }
+            return null;
+        }
+    }
+
+    /* Ответ на запрос информации о документе: массив из одного документа (или сам документ),
+     статус - поле status. null, если статуса в ответе нет
+     */
+    private String parseDocumentStatus(byte[] body) throws IOException {
+        try (JsonParser parser = objectMapper.getFactory().createParser(body)) {
+            JsonToken token = parser.nextToken();
+            if (token == JsonToken.START_ARRAY) {
+                token = parser.nextToken();
+            }
+            if (token != JsonToken.START_OBJECT) {
+                return null;
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String name = parser.currentName();
+                JsonToken value = parser.nextToken();
+                if ("status".equals(name) && value == JsonToken.VALUE_STRING) {
+                    return parser.getText();
+                }
+                parser.skipChildren();
+            }
+            return null;
+        }
+    }
+
+    /* Слот на выполнение из maxConcurrency и место в окне лимитера выдает очередь приоритетов, в этом порядке:
+     место в окне резервируется только под уже занятый слот, поэтому разрешения не копятся, пока слоты заняты,
+     и запрос уходит в момент, на который зарезервировано место. Слот держится до ответа
+     */
+    void acquirePermission(Priority priority) throws InterruptedException {
+        long start = System.nanoTime();
+        if (tryAcquirePermission()) {
+            metrics.permitWait(System.nanoTime() - start);
+            return;
+        }
+        CountDownLatch admitted = new CountDownLatch(1);
+        Runnable waiter = admitted::countDown;
+        admission.enqueue(priority, waiter);
+        try {
+            admitted.await();
+        } catch (InterruptedException e) {
+            if (!admission.cancel(priority, waiter)) {
+                // Ожидающий уже допущен: слот за ним закреплен, его нужно вернуть. Место в окне пропадает
+                awaitUninterruptibly(admitted);
+                releasePermission();
+            }
+            throw e;
+        }
+        metrics.permitWait(System.nanoTime() - start);
+    }
+
+    private static void awaitUninterruptibly(CountDownLatch latch) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                latch.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /* Быстрый путь без очереди: никто не ждет, слот свободен и место в окне есть прямо сейчас.
+     Без блокировки Admission и без аллокаций. Ожидающий мог встать в очередь между проверками -
+     тогда освобождение слота в releasePermission его допустит
+     */
+    private boolean tryAcquirePermission() {
+        if (admission.hasQueued() || !semaphore.tryAcquire()) {
+            return false;
+        }
+        if (rateLimiter.tryReserve()) {
+            return true;
+        }
+        releasePermission();
+        return false;
+    }
+
+    void releasePermission() {
+        semaphore.release();
+        admission.dispatch();
+    }
+
+    RequestBody buildRequestBody(Document document, String signature) throws IOException {
+        RequestBody body = new RequestBody(bufferPool);
+        try {
+            writeRequestBody(body, document, signature);
+        } catch (IOException | RuntimeException e) {
+            body.recycle();
+            throw e;
+        }
+        return body;
+    }
+
+    private static final byte[] BODY_PREFIX = "{\"document_format\":\"MANUAL\",\"product_document\":\""
+            .getBytes(StandardCharsets.UTF_8);
+    private static final byte[] SIGNATURE_PREFIX = "\",\"signature\":\"".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] BODY_SUFFIX = "\",\"type\":\"LP_INTRODUCE_GOODS\"}".getBytes(StandardCharsets.UTF_8);
+
+    /* Тело запроса: {"document_format":"MANUAL","product_document":"<Document в JSON>","signature":..,"type":..}.
+     product_document - это JSON-строка, поэтому документ сериализуется Jackson прямо в экранирующий поток,
+     без промежуточной строки и повторной сериализации обертки. Все экранируемые символы ASCII, а байты
+     многобайтовых UTF-8 последовательностей всегда >= 0x80, поэтому экранировать можно прямо UTF-8 байты.
+     Результат побайтно совпадает с двойным кодированием
+     */
+    private void writeRequestBody(RequestBody out, Document document, String signature) throws IOException {
+        JsonStringEscapingOutputStream escaped = new JsonStringEscapingOutputStream(out);
+        out.write(BODY_PREFIX);
+        long documentStart = out.length();
+        objectMapper.writeValue(escaped, document);
+        out.markDocument(documentStart, out.length());
+        if (signature != null) {
+            out.write(SIGNATURE_PREFIX);
+            escaped.write(signature.getBytes(StandardCharsets.UTF_8));
+        }
+        out.write(BODY_SUFFIX);
+    }
+
+    // Тот же формат, что у writeRequestBody(out, document, signature), но документ уже сериализован
+    private static void writeRequestBody(RequestBody out, DocumentBuffer document, String signature)
+            throws IOException {
+        JsonStringEscapingOutputStream escaped = new JsonStringEscapingOutputStream(out);
+        out.write(BODY_PREFIX);
+        long documentStart = out.length();
+        escaped.write(document.array(), 0, document.size());
+        out.markDocument(documentStart, out.length());
+        out.write(SIGNATURE_PREFIX);
+        escaped.write(signature.getBytes(StandardCharsets.UTF_8));
+        out.write(BODY_SUFFIX);
+    }
+
+    /* Пока токен действителен, возвращается без ожидания; ждать приходится только первого получения
+     или если токен успел истечь без обращений к API
+     */
+    private String getAuthToken() throws InterruptedException, ApiException {
+        try {
+            return authTokenProvider.token().get();
+        } catch (ExecutionException e) {
+            throw new ApiException("Authentication error", e.getCause());
+        }
+    }
+
+    // Базовый адрес может содержать путь (например, адрес стенда за прокси), поэтому путь API дописывается к нему
+    static String endpoint(URI baseUri, String path) {
+        String base = baseUri.toString();
+        return (base.endsWith("/") ? base.substring(0, base.length() - 1) : base) + path;
+    }
+
+    // Подпись - работа процессора, поэтому потоков не больше заданного, очередь ограничивают вызывающие
+    private static ExecutorService newSigningExecutor(int threads) {
+        AtomicInteger counter = new AtomicInteger();
+        return Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "crpt-api-signer-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /* Проект собирается под Java 17, поэтому фабрика виртуальных потоков берется через reflection.
+     Под Java 21 можно собрать с профилем -Pjava21
+     */
+    static ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (NoSuchMethodException e) {
+            throw new IllegalStateException("Virtual threads require Java 21 or newer", e);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Cannot create virtual thread executor", e);
+        }
+    }
+
+    /* Классы приоритета документов. Когда лимит занят, разрешения делятся между ожидающими классами
+     в пропорции весов 16:4:1
+     */
+    public enum Priority {
+        URGENT(16),
+        NORMAL(4),
+        BULK(1);
+
+        final int weight;
+
+        Priority(int weight) {
+            this.weight = weight;
+        }
+    }
+
+    /* Очередь к слотам на выполнение и лимитеру по классам приоритета. Ожидающий допускается, когда за ним
+     закреплены свободный слот и место в окне лимитера. Зарезервированное место в окне лимитера всегда одно:
+     оно отдается ожидающему в момент, когда наступает, а не в момент прихода. Поэтому пакет BULK не занимает
+     расписание наперед, и URGENT, пришедший в разгар пакета, ждет не дольше, чем 17/16 интервала между
+     разрешениями на каждый URGENT перед ним. Класс выбирается stride scheduling: у каждого класса свое
+     виртуальное время, которое растет на 1/weight за разрешение; берется ожидающий класс с наименьшим.
+     Класс, простоявший пустым, не копит кредит - его время подтягивается к текущему
+     */
+    private final class Admission {
+        private static final long STRIDE = 1 << 20;
+
+        private final ReentrantLock lock = new ReentrantLock();
+        private final List<ArrayDeque<Runnable>> lanes = new ArrayList<>();
+        private final long[] pass = new long[Priority.values().length];
+        private long virtualTime;
+        private boolean scheduled;
+        // Число ожидающих во всех классах, читается без блокировки быстрым путем
+        private volatile int queued;
+
+        Admission() {
+            for (int i = 0; i < pass.length; i++) {
+                lanes.add(new ArrayDeque<>());
+            }
+        }
+
+        void enqueue(Priority priority, Runnable waiter) {
+            lock.lock();
+            try {
+                ArrayDeque<Runnable> lane = lanes.get(priority.ordinal());
+                if (lane.isEmpty()) {
+                    pass[priority.ordinal()] = Math.max(pass[priority.ordinal()], virtualTime);
+                }
+                lane.add(waiter);
+                queued++;
+            } finally {
+                lock.unlock();
+            }
+            dispatch();
+        }
+
+        // false, если ожидающий уже допущен
+        boolean cancel(Priority priority, Runnable waiter) {
+            lock.lock();
+            try {
+                if (!lanes.get(priority.ordinal()).remove(waiter)) {
+                    return false;
+                }
+                queued--;
+                return true;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /* Ожидающие запускаются вне блокировки, на потоке, который освободил слот или дождался разрешения.
+         Без свободного слота место в окне не резервируется: dispatch повторится из releasePermission.
+         reserve может обращаться к внешнему хранилищу (DistributedRateLimiter), поэтому идет вне блокировки;
+         флаг scheduled на это время не пускает другие потоки резервировать параллельно
+         */
+        void dispatch() {
+            // Пустая очередь проверяется без блокировки: вставший после проверки ожидающий сам вызовет dispatch
+            while (hasQueued()) {
+                lock.lock();
+                try {
+                    if (scheduled || !hasQueued() || !semaphore.tryAcquire()) {
+                        return;
+                    }
+                    scheduled = true;
+                } finally {
+                    lock.unlock();
+                }
+                long delayNanos;
+                try {
+                    delayNanos = rateLimiter.reserve();
+                } catch (RuntimeException e) {
+                    lock.lock();
+                    try {
+                        scheduled = false;
+                    } finally {
+                        lock.unlock();
+                    }
+                    semaphore.release();
+                    throw e;
+                }
+                if (delayNanos > 0) {
+                    admissionTimer.schedule(this::admitScheduled, delayNanos, TimeUnit.NANOSECONDS);
+                    return;
+                }
+                admit(takeReserved());
+            }
+        }
+
+        // Если все ожидавшие успели отмениться, зарезервированное место пропадает, а слот возвращается
+        private void admitScheduled() {
+            admit(takeReserved());
+            dispatch();
+        }
+
+        private void admit(Runnable admitted) {
+            if (admitted != null) {
+                admitted.run();
+            } else {
+                semaphore.release();
+            }
+        }
+
+        private Runnable takeReserved() {
+            lock.lock();
+            try {
+                scheduled = false;
+                return poll();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        boolean hasQueued() {
+            return queued > 0;
+        }
+
+        private Runnable poll() {
+            int best = -1;
+            for (int i = 0; i < pass.length; i++) {
+                if (!lanes.get(i).isEmpty() && (best < 0 || pass[i] < pass[best])) {
+                    best = i;
+                }
+            }
+            if (best < 0) {
+                return null;
+            }
+            virtualTime = pass[best];
+            pass[best] += STRIDE / Priority.values()[best].weight;
+            queued--;
+            return lanes.get(best).poll();
+        }
+    }
+
+    public enum ExecutionMode {
+        PLATFORM_THREADS,
+        VIRTUAL_THREADS
+    }
+
+    public interface AuthTokenProvider {
+        CompletableFuture<String> token();
+
+        static AuthTokenProvider fixed(String token) {
+            CompletableFuture<String> future = CompletableFuture.completedFuture(token);
+            return () -> future;
+        }
+    }
+
+    // Подпись данных УКЭП, возвращает открепленную подпись в Base64
+    public interface Signer {
+        String sign(byte[] data) throws GeneralSecurityException;
+    }
+
+    /* Подпись документа для createDocument(Document) и submitAll(Collection): открепленная подпись
+     в Base64 над JSON документа, то есть над байтами content[offset, offset + length), которые уйдут
+     в product_document. Массив принадлежит клиенту и переиспользуется после возврата из sign.
+     Вызывается одновременно из нескольких потоков пула подписи
+     */
+    public interface DocumentSigner {
+        String sign(byte[] content, int offset, int length) throws GeneralSecurityException;
+
+        // Для Signer, которому нужен отдельный массив
+        static DocumentSigner of(Signer signer) {
+            return (content, offset, length) -> signer.sign(Arrays.copyOfRange(content, offset, offset + length));
+        }
+    }
+
+    /* Буфер сериализованного документа для подписи, свой у каждого потока. Буфер больше MAX_RETAINED
+     после документа не удерживается, чтобы один большой документ не держал память потока навсегда
+     */
+    private static final class DocumentBuffer extends ByteArrayOutputStream {
+        private static final int MAX_RETAINED = 1024 * 1024;
+        private static final ThreadLocal<DocumentBuffer> BUFFERS = ThreadLocal.withInitial(DocumentBuffer::new);
+
+        private DocumentBuffer() {
+            super(16 * 1024);
+        }
+
+        static DocumentBuffer get() {
+            DocumentBuffer buffer = BUFFERS.get();
+            buffer.reset();
+            return buffer;
+        }
+
+        byte[] array() {
+            return buf;
+        }
+
+        void release() {
+            if (buf.length > MAX_RETAINED) {
+                BUFFERS.remove();
+            }
+        }
+    }
+
+    /* Получение токена по разделу 1.2 документации API:
+      1. GET-запрос к /api/v3/auth/cert/key для получения UUID и данных
+      2. Подписать данные с помощью УКЭП (Signer)
+      3. POST-запрос к /api/v3/auth/cert/ с подписанными данными для получения токена
+     Токен кешируется. После refreshAt первый же вызов запускает обновление в фоне и сразу получает
+     текущий токен. Одновременно выполняется не больше одного обновления, остальные вызывающие
+     подписываются на его результат
+     */
+    public static final class CertificateAuthTokenProvider implements AuthTokenProvider {
+        private static final Duration RETRY_DELAY = Duration.ofSeconds(30);
+
+        private final HttpClient httpClient;
+        private final URI baseUri;
+        private final Signer signer;
+        private final long lifetimeNanos;
+        private final long refreshBeforeNanos;
+        private final Duration requestTimeout;
+        private final ObjectMapper objectMapper = new ObjectMapper();
+        private final AtomicReference<CachedToken> current = new AtomicReference<>();
+        private final AtomicReference<CompletableFuture<CachedToken>> refreshing = new AtomicReference<>();
+
+        // По документации токен действует 10 часов
+        public CertificateAuthTokenProvider(HttpClient httpClient, URI baseUri, Signer signer) {
+            this(httpClient, baseUri, signer, Duration.ofHours(10), Duration.ofHours(1));
+        }
+
+        public CertificateAuthTokenProvider(HttpClient httpClient, URI baseUri, Signer signer,
+                                            Duration tokenLifetime, Duration refreshBefore) {
+            this(httpClient, baseUri, signer, tokenLifetime, refreshBefore, Duration.ofSeconds(30));
+        }
+
+        /* requestTimeout - на каждый из двух запросов получения токена. Без него зависший сервер авторизации
+         не завершил бы текущее обновление, и все ожидающие токен ждали бы вместе с ним
+         */
+        public CertificateAuthTokenProvider(HttpClient httpClient, URI baseUri, Signer signer,
+                                            Duration tokenLifetime, Duration refreshBefore, Duration requestTimeout) {
+            if (httpClient == null || baseUri == null || signer == null || requestTimeout == null) {
+                throw new IllegalArgumentException("HTTP client, base URI, signer and request timeout must not be null");
+            }
+            if (refreshBefore.isNegative() || refreshBefore.compareTo(tokenLifetime) >= 0) {
+                throw new IllegalArgumentException("Refresh lead time must be shorter than token lifetime");
+            }
+            this.httpClient = httpClient;
+            this.baseUri = baseUri;
+            this.signer = signer;
+            this.lifetimeNanos = tokenLifetime.toNanos();
+            this.refreshBeforeNanos = refreshBefore.toNanos();
+            this.requestTimeout = requestTimeout;
+        }
+
+        @Override
+        public CompletableFuture<String> token() {
+            CachedToken cached = current.get();
+            long now = System.nanoTime();
+            if (cached != null && now - cached.expiresAt < 0) {
+                if (now - cached.refreshAt >= 0) {
+                    refresh();
+                }
+                return cached.future;
+            }
+            return refresh().thenApply(token -> token.value);
+        }
+
+        private CompletableFuture<CachedToken> refresh() {
+            while (true) {
+                CompletableFuture<CachedToken> inFlight = refreshing.get();
+                if (inFlight != null) {
+                    return inFlight;
+                }
+                CompletableFuture<CachedToken> mine = new CompletableFuture<>();
+                if (refreshing.compareAndSet(null, mine)) {
+                    fetch().whenComplete((token, error) -> {
+                        if (error == null) {
+                            current.set(token);
+                        } else {
+                            postponeRefresh();
+                        }
+                        refreshing.compareAndSet(mine, null);
+                        if (error == null) {
+                            mine.complete(token);
+                        } else {
+                            mine.completeExceptionally(unwrap(error));
+                        }
+                    });
+                    return mine;
+                }
+            }
+        }
+
+        // После неудачного обновления действующий токен остается, следующая попытка - не раньше RETRY_DELAY
+        private void postponeRefresh() {
+            CachedToken cached = current.get();
+            if (cached != null) {
+                long retryAt = System.nanoTime() + RETRY_DELAY.toNanos();
+                current.compareAndSet(cached, new CachedToken(cached.value, cached.expiresAt, retryAt));
+            }
+        }
+
+        private CompletableFuture<CachedToken> fetch() {
+            HttpRequest keyRequest = HttpRequest.newBuilder()
+                    .uri(URI.create(endpoint(baseUri, "/api/v3/auth/cert/key")))
+                    .timeout(requestTimeout)
+                    .GET()
+                    .build();
+            return httpClient.sendAsync(keyRequest, HttpResponse.BodyHandlers.ofByteArray())
+                    .thenCompose(response -> {
+                        JsonNode key = readJson(response);
+                        String data = key.path("data").asText();
+                        String signed;
+                        try {
+                            signed = signer.sign(data.getBytes(StandardCharsets.UTF_8));
+                        } catch (GeneralSecurityException e) {
+                            throw new CompletionException(new ApiException("Auth data signing error", e));
+                        }
+                        byte[] body;
+                        try {
+                            body = objectMapper.writeValueAsBytes(objectMapper.createObjectNode()
+                                    .put("uuid", key.path("uuid").asText())
+                                    .put("data", signed));
+                        } catch (IOException e) {
+                            throw new CompletionException(new ApiException("JSON serialization error", e));
+                        }
+                        HttpRequest tokenRequest = HttpRequest.newBuilder()
+                                .uri(URI.create(endpoint(baseUri, "/api/v3/auth/cert/")))
+                                .timeout(requestTimeout)
+                                .header("Content-Type", "application/json")
+                                .POST(HttpRequest.BodyPublishers.ofByteArray(body))
+                                .build();
+                        return httpClient.sendAsync(tokenRequest, HttpResponse.BodyHandlers.ofByteArray());
+                    })
+                    .thenApply(response -> {
+                        String token = readJson(response).path("token").asText(null);
+                        if (token == null) {
+                            throw new CompletionException(new ApiException("Auth response contains no token"));
+                        }
+                        long now = System.nanoTime();
+                        return new CachedToken(token, now + lifetimeNanos, now + lifetimeNanos - refreshBeforeNanos);
+                    });
+        }
+
+        private JsonNode readJson(HttpResponse<byte[]> response) {
+            if (response.statusCode() != 200) {
+                throw new CompletionException(new ApiException("Auth request failed with status: "
+                        + response.statusCode() + ", body: " + new String(response.body(), StandardCharsets.UTF_8)));
+            }
+            try {
+                return objectMapper.readTree(response.body());
+            } catch (IOException e) {
+                throw new CompletionException(new ApiException("Auth response parsing error", e));
+            }
+        }
+
+        private static final class CachedToken {
+            final String value;
+            final long expiresAt;
+            final long refreshAt;
+            final CompletableFuture<String> future;
+
+            CachedToken(String value, long expiresAt, long refreshAt) {
+                this.value = value;
+                this.expiresAt = expiresAt;
+                this.refreshAt = refreshAt;
+                this.future = CompletableFuture.completedFuture(value);
+            }
+        }
+    }
+
+    /* Настройки клиента. По умолчанию: https://ismp.crpt.ru, HTTP/2 с откатом на HTTP/1.1, без прогрева соединения,
+     30 секунд на соединение и 30 секунд на весь запрос, чтобы медленный ответ не держал слот бесконечно.
+     ObjectMapper можно передать общий - клиент его не перенастраивает
+     */
+    public static final class Builder {
+        private final TimeUnit timeUnit;
+        private final int requestLimit;
+        private RateLimiter rateLimiter;
+        private int maxConcurrency = Integer.MAX_VALUE;
+        private URI baseUri = URI.create("https://ismp.crpt.ru");
+        private Duration connectTimeout = Duration.ofSeconds(30);
+        private Duration requestTimeout = Duration.ofSeconds(30);
+        private HttpClient.Version httpVersion = HttpClient.Version.HTTP_2;
+        private Executor executor;
+        private ExecutionMode executionMode = ExecutionMode.PLATFORM_THREADS;
+        private ObjectMapper objectMapper;
+        private AuthTokenProvider authTokenProvider;
+        private Signer authSigner;
+        private boolean warmUp;
+        private Duration keepAliveInterval;
+        private Metrics metrics = Metrics.NOOP;
+        private RetryPolicy retryPolicy = RetryPolicy.NONE;
+        private Duration deduplicationTtl;
+        private int deduplicationCapacity;
+        private boolean validateDocuments = true;
+        private DocumentSigner documentSigner;
+        private int signingThreads = Runtime.getRuntime().availableProcessors();
+
+        private Builder(TimeUnit timeUnit, int requestLimit) {
+            if (timeUnit == null) {
+                throw new IllegalArgumentException("Time unit must not be null");
+            }
+            if (requestLimit <= 0) {
+                throw new IllegalArgumentException("Request limit must be positive");
+            }
+            this.timeUnit = timeUnit;
+            this.requestLimit = requestLimit;
+        }
+
+        public Builder rateLimiter(RateLimiter rateLimiter) {
+            this.rateLimiter = rateLimiter;
+            return this;
+        }
+
+        // Лимит снижается по ответам 429/503 и Retry-After и восстанавливается по успешным, см. AdaptiveRateLimiter
+        public Builder adaptiveRateLimit() {
+            this.rateLimiter = new AdaptiveRateLimiter(timeUnit, requestLimit);
+            return this;
+        }
+
+        // Лимит timeUnit/requestLimit, общий для всех узлов с тем же ключом в хранилище, см. DistributedRateLimiter
+        public Builder sharedRateLimit(PermitStore permitStore, String key) {
+            this.rateLimiter = new DistributedRateLimiter(permitStore, key, timeUnit, requestLimit);
+            return this;
+        }
+
+        /* Максимум одновременно выполняющихся HTTP-запросов, независимо от лимита частоты.
+         По умолчанию не ограничен: число запросов в полете и так не больше requestLimit за время requestTimeout
+         */
+        public Builder maxConcurrency(int maxConcurrency) {
+            if (maxConcurrency <= 0) {
+                throw new IllegalArgumentException("Max concurrency must be positive");
+            }
+            this.maxConcurrency = maxConcurrency;
+            return this;
+        }
+
+        public Builder baseUri(URI baseUri) {
+            this.baseUri = requireNonNull(baseUri, "Base URI");
+            return this;
+        }
+
+        public Builder connectTimeout(Duration connectTimeout) {
+            this.connectTimeout = requirePositive(connectTimeout, "Connect timeout");
+            return this;
+        }
+
+        public Builder requestTimeout(Duration requestTimeout) {
+            this.requestTimeout = requirePositive(requestTimeout, "Request timeout");
+            return this;
+        }
+
+        public Builder httpVersion(HttpClient.Version httpVersion) {
+            this.httpVersion = requireNonNull(httpVersion, "HTTP version");
+            return this;
+        }
+
+        // Executor для HttpClient; задается либо он, либо ExecutionMode.VIRTUAL_THREADS
+        public Builder executor(Executor executor) {
+            this.executor = executor;
+            return this;
+        }
+
+        public Builder executionMode(ExecutionMode executionMode) {
+            this.executionMode = requireNonNull(executionMode, "Execution mode");
+            return this;
+        }
+
+        public Builder objectMapper(ObjectMapper objectMapper) {
+            this.objectMapper = objectMapper;
+            return this;
+        }
+
+        public Builder authTokenProvider(AuthTokenProvider authTokenProvider) {
+            this.authTokenProvider = authTokenProvider;
+            return this;
+        }
+
+        // Токен по УКЭП через CertificateAuthTokenProvider на том же HttpClient и базовом адресе
+        public Builder authSigner(Signer authSigner) {
+            this.authSigner = authSigner;
+            return this;
+        }
+
+        // По умолчанию повторов нет, см. RetryPolicy
+        public Builder retryPolicy(RetryPolicy retryPolicy) {
+            this.retryPolicy = requireNonNull(retryPolicy, "Retry policy");
+            return this;
+        }
+
+        /* Склеивать повторы документа с тем же doc_id и содержимым: пока первая отправка идет, повторы получают
+         ее результат, а после успеха она помнится recentTtl (не больше maxRecent документов). Нулевой recentTtl -
+         только склейка одновременных повторов
+         */
+        public Builder deduplicate(Duration recentTtl, int maxRecent) {
+            if (recentTtl == null || recentTtl.isNegative()) {
+                throw new IllegalArgumentException("Recent TTL must not be negative");
+            }
+            if (maxRecent < 0) {
+                throw new IllegalArgumentException("Max recent must not be negative");
+            }
+            this.deduplicationTtl = recentTtl;
+            this.deduplicationCapacity = maxRecent;
+            return this;
+        }
+
+        // Подпись документов для createDocument(Document) и submitAll(Collection), см. DocumentSigner
+        public Builder documentSigner(DocumentSigner documentSigner) {
+            this.documentSigner = requireNonNull(documentSigner, "Document signer");
+            return this;
+        }
+
+        // Потоки пула подписи, по умолчанию по числу процессоров
+        public Builder documentSigner(DocumentSigner documentSigner, int signingThreads) {
+            if (signingThreads <= 0) {
+                throw new IllegalArgumentException("Signing threads must be positive");
+            }
+            this.signingThreads = signingThreads;
+            return documentSigner(documentSigner);
+        }
+
+        // Проверка документов DocumentValidator перед отправкой, по умолчанию включена
+        public Builder validateDocuments(boolean validateDocuments) {
+            this.validateDocuments = validateDocuments;
+            return this;
+        }
+
+        public Builder metrics(Metrics metrics) {
+            this.metrics = requireNonNull(metrics, "Metrics");
+            return this;
+        }
+
+        // Установить соединение сразу при создании клиента, см. CrptApi.warmUp()
+        public Builder warmUp(boolean warmUp) {
+            this.warmUp = warmUp;
+            return this;
+        }
+
+        public Builder keepAlive(Duration keepAliveInterval) {
+            this.keepAliveInterval = requirePositive(keepAliveInterval, "Keep-alive interval");
+            return this;
+        }
+
+        public CrptApi build() {
+            if (executor != null && executionMode == ExecutionMode.VIRTUAL_THREADS) {
+                throw new IllegalStateException("Executor and virtual thread mode are mutually exclusive");
+            }
+            if (authTokenProvider != null && authSigner != null) {
+                throw new IllegalStateException("Auth token provider and auth signer are mutually exclusive");
+            }
+            CrptApi api = new CrptApi(this);
+            if (keepAliveInterval != null) {
+                api.scheduleKeepAlive(keepAliveInterval);
+            }
+            if (warmUp) {
+                api.warmUp();
+            }
+            return api;
+        }
+
+        private static <T> T requireNonNull(T value, String name) {
+            if (value == null) {
+                throw new IllegalArgumentException(name + " must not be null");
+            }
+            return value;
+        }
+
+        private static Duration requirePositive(Duration value, String name) {
+            if (value == null || value.isNegative() || value.isZero()) {
+                throw new IllegalArgumentException(name + " must be positive");
+            }
+            return value;
+        }
+    }
+
+    /* Политика повторов. Повторяются только попытки, которые сервер точно не обработал: 429, 503 и ошибки
+     установления соединения. 500, 502, 504 и таймаут ответа неоднозначны - документ мог быть создан,
+     поэтому они повторяются только с withAmbiguousRetries(). Паузы - decorrelated jitter:
+     случайная между baseDelay и утроенной предыдущей, не больше maxDelay, и не меньше Retry-After.
+     Повторы ограничены бюджетом: каждый новый запрос добавляет budgetRatio повтора (по умолчанию 0.1)
+     */
+    public static final class RetryPolicy {
+        public static final RetryPolicy NONE = new RetryPolicy(1, Duration.ofMillis(1), Duration.ofMillis(1));
+
+        private final int maxAttempts;
+        private final long baseDelayNanos;
+        private final long maxDelayNanos;
+        private final boolean retryAmbiguous;
+        private final double budgetRatio;
+
+        public RetryPolicy(int maxAttempts, Duration baseDelay, Duration maxDelay) {
+            this(maxAttempts, baseDelay, maxDelay, false, 0.1);
+        }
+
+        private RetryPolicy(int maxAttempts, Duration baseDelay, Duration maxDelay, boolean retryAmbiguous,
+                            double budgetRatio) {
+            if (maxAttempts <= 0) {
+                throw new IllegalArgumentException("Max attempts must be positive");
+            }
+            if (baseDelay == null || maxDelay == null || baseDelay.isNegative() || baseDelay.isZero()
+                    || maxDelay.compareTo(baseDelay) < 0) {
+                throw new IllegalArgumentException("Delays must be positive and base delay must not exceed max delay");
+            }
+            if (!(budgetRatio > 0)) {
+                throw new IllegalArgumentException("Budget ratio must be positive");
+            }
+            this.maxAttempts = maxAttempts;
+            this.baseDelayNanos = baseDelay.toNanos();
+            this.maxDelayNanos = maxDelay.toNanos();
+            this.retryAmbiguous = retryAmbiguous;
+            this.budgetRatio = budgetRatio;
+        }
+
+        // Повторять и запросы, которые сервер мог обработать; безопасно, если повторный doc_id отклоняется
+        public RetryPolicy withAmbiguousRetries() {
+            return new RetryPolicy(maxAttempts, Duration.ofNanos(baseDelayNanos), Duration.ofNanos(maxDelayNanos),
+                    true, budgetRatio);
+        }
+
+        public RetryPolicy withBudgetRatio(double budgetRatio) {
+            return new RetryPolicy(maxAttempts, Duration.ofNanos(baseDelayNanos), Duration.ofNanos(maxDelayNanos),
+                    retryAmbiguous, budgetRatio);
+        }
+
+        public int getMaxAttempts() {
+            return maxAttempts;
+        }
+
+        // statusCode 0 - ответа нет, тогда причина в failure
+        boolean isRetryable(int attempt, int statusCode, Throwable failure) {
+            if (attempt >= maxAttempts) {
+                return false;
+            }
+            if (statusCode == 429 || statusCode == 503) {
+                return true;
+            }
+            if (statusCode == 500 || statusCode == 502 || statusCode == 504) {
+                return retryAmbiguous;
+            }
+            if (statusCode != 0 || !(failure instanceof IOException)) {
+                return false;
+            }
+            return failure instanceof ConnectException || failure instanceof HttpConnectTimeoutException
+                    || retryAmbiguous;
+        }
+
+        long nextDelay(long previousDelayNanos) {
+            long upper = Math.max(baseDelayNanos, Math.min(maxDelayNanos, previousDelayNanos) * 3);
+            long delay = ThreadLocalRandom.current().nextLong(baseDelayNanos, upper + 1);
+            return Math.min(maxDelayNanos, delay);
+        }
+    }
+
+    /* Бюджет повторов в тысячных долях повтора: новый запрос кладет budgetRatio, повтор берет единицу.
+     Запас не больше окна лимита (минимум 10 повторов), поэтому при массовых сбоях повторы занимают
+     около budgetRatio пропускной способности и не вытесняют новые запросы
+     */
+    private static final class RetryBudget {
+        private static final long SCALE = 1000;
+
+        private final long deposit;
+        private final long capacity;
+        private final AtomicLong balance;
+
+        RetryBudget(RetryPolicy policy, int requestLimit) {
+            this.deposit = Math.max(1, Math.round(policy.budgetRatio * SCALE));
+            this.capacity = Math.max(10, Math.round(requestLimit * policy.budgetRatio)) * SCALE;
+            this.balance = new AtomicLong(capacity);
+        }
+
+        void deposit() {
+            balance.accumulateAndGet(deposit, (current, amount) -> Math.min(capacity, current + amount));
+        }
+
+        boolean tryWithdraw() {
+            while (true) {
+                long current = balance.get();
+                if (current < SCALE) {
+                    return false;
+                }
+                if (balance.compareAndSet(current, current - SCALE)) {
+                    return true;
+                }
+            }
+        }
+    }
+
+    /* Точки измерения клиента, все длительности в наносекундах. Вызываются на каждом запросе, поэтому
+     реализация не должна блокировать и аллоцировать. statusCode 0 - ответ не получен (ошибка ввода-вывода).
+     Количество выполняющихся запросов и свободных разрешений доступно через getInFlightRequests/getAvailablePermits
+     */
+    public interface Metrics {
+        Metrics NOOP = new Metrics() {
+        };
+
+        // Ожидание лимитера и свободного слота, от запроса разрешения до отправки
+        default void permitWait(long nanos) {
+        }
+
+        default void serialization(long nanos) {
+        }
+
+        default void roundTrip(long nanos, int statusCode) {
+        }
+    }
+
+    // Встроенная реализация Metrics на гистограммах LatencyHistogram и счетчиках статусов
+    public static final class HistogramMetrics implements Metrics {
+        private final LatencyHistogram permitWait = new LatencyHistogram();
+        private final LatencyHistogram serialization = new LatencyHistogram();
+        private final LatencyHistogram roundTrip = new LatencyHistogram();
+        private final AtomicLongArray statusCodes = new AtomicLongArray(600);
+
+        @Override
+        public void permitWait(long nanos) {
+            permitWait.record(nanos);
+        }
+
+        @Override
+        public void serialization(long nanos) {
+            serialization.record(nanos);
+        }
+
+        @Override
+        public void roundTrip(long nanos, int statusCode) {
+            roundTrip.record(nanos);
+            statusCodes.incrementAndGet(statusCode > 0 && statusCode < 600 ? statusCode : 0);
+        }
+
+        public LatencyHistogram getPermitWait() {
+            return permitWait;
+        }
+
+        public LatencyHistogram getSerialization() {
+            return serialization;
+        }
+
+        public LatencyHistogram getRoundTrip() {
+            return roundTrip;
+        }
+
+        public long getStatusCount(int statusCode) {
+            return statusCodes.get(statusCode > 0 && statusCode < 600 ? statusCode : 0);
+        }
+    }
+
+    /* Гистограмма в духе HdrHistogram: значения до 16 хранятся точно, дальше каждая степень двойки делится
+     на 16 интервалов (погрешность не больше 1/16). Запись - один инкремент в AtomicLongArray без аллокаций
+     */
+    public static final class LatencyHistogram {
+        private static final int SUB_BUCKET_BITS = 4;
+        private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+        private final AtomicLongArray counts = new AtomicLongArray((64 - SUB_BUCKET_BITS) * SUB_BUCKETS);
+
+        public void record(long value) {
+            counts.incrementAndGet(index(Math.max(value, 0)));
+        }
+
+        public long getCount() {
+            long total = 0;
+            for (int i = 0; i < counts.length(); i++) {
+                total += counts.get(i);
+            }
+            return total;
+        }
+
+        // Верхняя граница интервала, в который попадает заданный перцентиль (0..100)
+        public long getValueAtPercentile(double percentile) {
+            long total = getCount();
+            if (total == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(total * percentile / 100.0));
+            long seen = 0;
+            for (int i = 0; i < counts.length(); i++) {
+                seen += counts.get(i);
+                if (seen >= rank) {
+                    return i + 1 < counts.length() ? lowerBound(i + 1) - 1 : Long.MAX_VALUE;
+                }
+            }
+            return Long.MAX_VALUE;
+        }
+
+        static int index(long value) {
+            if (value < SUB_BUCKETS) {
+                return (int) value;
+            }
+            int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+            return (shift + 1) * SUB_BUCKETS + (int) ((value >>> shift) & (SUB_BUCKETS - 1));
+        }
+
+        static long lowerBound(int index) {
+            if (index < SUB_BUCKETS) {
+                return index;
+            }
+            int shift = index / SUB_BUCKETS - 1;
+            return (long) (SUB_BUCKETS + index % SUB_BUCKETS) << shift;
+        }
+    }
+
+    /* Ограничитель частоты запросов. reserve() атомарно закрепляет за вызывающим
+     место в расписании и возвращает, сколько наносекунд нужно подождать до отправки
+     */
+    public interface RateLimiter {
+        long reserve();
+
+        // Разрешение, только если оно доступно без ожидания; иначе ничего не резервируется
+        default boolean tryReserve() {
+            return false;
+        }
+
+        int availablePermits();
+
+        // Ответ сервера на отправленный запрос; retryAfterNanos -1, если заголовка Retry-After нет
+        default void onResponse(int statusCode, long retryAfterNanos) {
+        }
+
+        default void acquire() throws InterruptedException {
+            long delayNanos = reserve();
+            if (delayNanos > 0) {
+                TimeUnit.NANOSECONDS.sleep(delayNanos);
+            }
+        }
+    }
+
+    /* Точное скользящее окно: в любом интервале длиной timeUnit выдается не более requestLimit разрешений.
+     Время выдачи k-го разрешения: max(сейчас, время (k-1)-го, время (k-requestLimit)-го + окно).
+     Номер разрешения захватывается CAS-ом на счетчике, времена хранятся в кольцевом буфере
+     из requestLimit ячеек, поэтому acquire ничего не аллоцирует и не берет мониторов и ReentrantLock.
+     Это не lock-free: время записывается в ячейку уже после CAS, и читатель ждет публикации ячейки
+     потоком, выигравшим CAS (см. publishedTime)
+     */
+    public static final class SlidingWindowRateLimiter implements RateLimiter {
+        private static final int SPIN_LIMIT = 100;
+        private static final long PARK_NANOS = 1_000;
+
+        private final long windowNanos;
+        private final int limit;
+        private final long origin = System.nanoTime();
+        private final AtomicLong tickets = new AtomicLong();
+        private final AtomicLongArray times;
+        private final AtomicLongArray sequences;
+        // Снижаются AdaptiveRateLimiter-ом: текущий лимит не больше limit и пауза до момента от origin
+        private volatile int effectiveLimit;
+        private final AtomicLong pausedUntil = new AtomicLong();
+
+        public SlidingWindowRateLimiter(TimeUnit timeUnit, int requestLimit) {
+            if (timeUnit == null) {
+                throw new IllegalArgumentException("Time unit must not be null");
+            }
+            if (requestLimit <= 0) {
+                throw new IllegalArgumentException("Request limit must be positive");
+            }
+            this.windowNanos = timeUnit.toNanos(1);
+            this.limit = requestLimit;
+            this.effectiveLimit = requestLimit;
+            this.times = new AtomicLongArray(requestLimit);
+            this.sequences = new AtomicLongArray(requestLimit);
+            for (int i = 0; i < requestLimit; i++) {
+                sequences.set(i, -1);
+            }
+        }
+
+        @Override
+        public long reserve() {
+            while (true) {
+                long ticket = tickets.get();
+                long now = System.nanoTime() - origin;
+                long at = Math.max(now, pausedUntil.get());
+                int currentLimit = effectiveLimit;
+                if (ticket > 0) {
+                    at = Math.max(at, publishedTime(ticket - 1));
+                }
+                if (ticket >= currentLimit) {
+                    at = Math.max(at, publishedTime(ticket - currentLimit) + windowNanos);
+                }
+                if (tickets.compareAndSet(ticket, ticket + 1)) {
+                    int slot = (int) (ticket % limit);
+                    times.set(slot, at);
+                    sequences.set(slot, ticket);
+                    return at - now;
+                }
+            }
+        }
+
+        @Override
+        public boolean tryReserve() {
+            while (true) {
+                long ticket = tickets.get();
+                long now = System.nanoTime() - origin;
+                int currentLimit = effectiveLimit;
+                if (now < pausedUntil.get()
+                        || ticket > 0 && publishedTime(ticket - 1) > now
+                        || ticket >= currentLimit && publishedTime(ticket - currentLimit) + windowNanos > now) {
+                    return false;
+                }
+                if (tickets.compareAndSet(ticket, ticket + 1)) {
+                    int slot = (int) (ticket % limit);
+                    times.set(slot, now);
+                    sequences.set(slot, ticket);
+                    return true;
+                }
+            }
+        }
+
+        // Приблизительно: сколько из последних limit разрешений выдано или зарезервировано внутри текущего окна
+        @Override
+        public int availablePermits() {
+            long ticket = tickets.get();
+            long now = System.nanoTime() - origin;
+            int recent = 0;
+            int currentLimit = effectiveLimit;
+            if (now < pausedUntil.get()) {
+                return 0;
+            }
+            for (long k = Math.max(0, ticket - currentLimit); k < ticket; k++) {
+                if (times.get((int) (k % limit)) > now - windowNanos) {
+                    recent++;
+                }
+            }
+            return Math.max(0, currentLimit - recent);
+        }
+
+        /* Смотреть назад на currentLimit <= limit разрешений безопасно: ячейка (k - currentLimit)
+         перезаписывается только разрешением с номером больше k, и тогда CAS в reserve не пройдет
+         */
+        void setEffectiveLimit(int effectiveLimit) {
+            this.effectiveLimit = Math.max(1, Math.min(limit, effectiveLimit));
+        }
+
+        // Ни одно новое разрешение не начнется раньше чем через delayNanos
+        void pause(long delayNanos) {
+            pausedUntil.accumulateAndGet(System.nanoTime() - origin + delayNanos, Math::max);
+        }
+
+        /* Ячейку публикует поток, выигравший CAS; между CAS и записью обычно проходят наносекунды,
+         поэтому сначала ждем активно. Если публикующий поток вытеснен между CAS и записью, ожидание
+         переходит на парковку, чтобы не жечь ядро, которое ему нужно. Если ячейку уже перезаписали,
+         наш CAS все равно не пройдет
+         */
+        private long publishedTime(long ticket) {
+            int slot = (int) (ticket % limit);
+            for (int spins = 0; sequences.get(slot) < ticket; spins++) {
+                if (spins < SPIN_LIMIT) {
+                    Thread.onSpinWait();
+                } else {
+                    LockSupport.parkNanos(PARK_NANOS);
+                }
+            }
+            return times.get(slot);
+        }
+    }
+
+    /* AIMD поверх скользящего окна: 429 или 503 вдвое снижают действующий лимит (не чаще раза за окно,
+     чтобы один всплеск отказов не обрушил его до минимума), каждые успешные ответы в числе текущего лимита
+     возвращают по одному разрешению, пока лимит не дойдет до настроенного. Retry-After приостанавливает
+     выдачу разрешений на указанное время. Так клиент держится у наибольшей частоты, которую принимает сервер
+     */
+    public static final class AdaptiveRateLimiter implements RateLimiter {
+        private final SlidingWindowRateLimiter window;
+        private final long windowNanos;
+        private final int maxLimit;
+        private final int minLimit;
+        private double rate;
+        private long lastDecrease;
+
+        public AdaptiveRateLimiter(TimeUnit timeUnit, int requestLimit) {
+            this(timeUnit, requestLimit, 1);
+        }
+
+        public AdaptiveRateLimiter(TimeUnit timeUnit, int requestLimit, int minLimit) {
+            this.window = new SlidingWindowRateLimiter(timeUnit, requestLimit);
+            if (minLimit <= 0 || minLimit > requestLimit) {
+                throw new IllegalArgumentException("Min limit must be between 1 and request limit");
+            }
+            this.windowNanos = timeUnit.toNanos(1);
+            this.maxLimit = requestLimit;
+            this.minLimit = minLimit;
+            this.rate = requestLimit;
+            this.lastDecrease = System.nanoTime() - windowNanos;
+        }
+
+        @Override
+        public long reserve() {
+            return window.reserve();
+        }
+
+        @Override
+        public boolean tryReserve() {
+            return window.tryReserve();
+        }
+
+        @Override
+        public int availablePermits() {
+            return window.availablePermits();
+        }
+
+        @Override
+        public void onResponse(int statusCode, long retryAfterNanos) {
+            if (retryAfterNanos > 0) {
+                window.pause(retryAfterNanos);
+            }
+            if (statusCode == 429 || statusCode == 503) {
+                decrease();
+            } else if (statusCode >= 200 && statusCode < 300) {
+                increase();
+            }
+        }
+
+        public synchronized int getEffectiveLimit() {
+            return (int) rate;
+        }
+
+        private synchronized void decrease() {
+            long now = System.nanoTime();
+            if (now - lastDecrease < windowNanos) {
+                return;
+            }
+            lastDecrease = now;
+            rate = Math.max(minLimit, rate / 2);
+            window.setEffectiveLimit((int) rate);
+        }
+
+        private synchronized void increase() {
+            if (rate < maxLimit) {
+                rate = Math.min(maxLimit, rate + 1 / rate);
+                window.setEffectiveLimit((int) rate);
+            }
+        }
+    }
+
+    /* Лимит, общий для нескольких узлов с одними учетными данными (лимит ЧЗ считается на аккаунт, а не на JVM).
+     Разрешения берутся из PermitStore пачками по leaseSize и раздаются локально без обращения к хранилищу.
+     Разрешение действительно leaseTtl с момента выдачи, неиспользованное сгорает. Чтобы отправка в пределах
+     leaseTtl не нарушала окно, слот в хранилище занимается на окно + leaseTtl.
+     Время общее для узлов (epoch millis), поэтому расхождение часов узлов прибавляется к погрешности окна
+     */
+    public static final class DistributedRateLimiter implements RateLimiter {
+        private final PermitStore store;
+        private final String key;
+        private final int limit;
+        private final int leaseSize;
+        private final long leaseTtlMillis;
+        private final long holdMillis;
+        private final ReentrantLock lock = new ReentrantLock();
+        private final long[] leased;
+        private int head;
+        private int size;
+
+        // Пачка в десятую часть лимита и срок жизни в десятую часть окна
+        public DistributedRateLimiter(PermitStore store, String key, TimeUnit timeUnit, int requestLimit) {
+            this(store, key, timeUnit, requestLimit, Math.max(1, requestLimit / 10),
+                    Duration.ofMillis(Math.max(1, timeUnit.toMillis(1) / 10)));
+        }
+
+        public DistributedRateLimiter(PermitStore store, String key, TimeUnit timeUnit, int requestLimit,
+                                      int leaseSize, Duration leaseTtl) {
+            if (store == null || key == null) {
+                throw new IllegalArgumentException("Permit store and key must not be null");
+            }
+            if (timeUnit == null || timeUnit.toMillis(1) == 0) {
+                throw new IllegalArgumentException("Time unit must be at least one millisecond");
+            }
+            if (requestLimit <= 0) {
+                throw new IllegalArgumentException("Request limit must be positive");
+            }
+            if (leaseSize <= 0 || leaseSize > requestLimit) {
+                throw new IllegalArgumentException("Lease size must be between 1 and request limit");
+            }
+            if (leaseTtl == null || leaseTtl.toMillis() <= 0) {
+                throw new IllegalArgumentException("Lease TTL must be at least one millisecond");
+            }
+            this.store = store;
+            this.key = key;
+            this.limit = requestLimit;
+            this.leaseSize = leaseSize;
+            this.leaseTtlMillis = leaseTtl.toMillis();
+            this.holdMillis = timeUnit.toMillis(1) + leaseTtlMillis;
+            this.leased = new long[leaseSize];
+        }
+
+        /* Обращение к хранилищу идет под блокировкой: пока один поток пополняет запас,
+         остальные ждут его пачку, а не идут в хранилище сами
+         */
+        @Override
+        public long reserve() {
+            lock.lock();
+            try {
+                long now = System.currentTimeMillis();
+                long start = poll(now);
+                // Пачка могла сгореть, пока шел запрос к медленному хранилищу
+                while (start < 0) {
+                    long[] starts = store.lease(key, limit, leaseSize, holdMillis);
+                    for (long leasedStart : starts) {
+                        leased[(head + size++) % leased.length] = leasedStart;
+                    }
+                    now = System.currentTimeMillis();
+                    start = poll(now);
+                }
+                return TimeUnit.MILLISECONDS.toNanos(Math.max(0, start - now));
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        // Только локальный запас, хранилище не опрашивается
+        @Override
+        public int availablePermits() {
+            lock.lock();
+            try {
+                long now = System.currentTimeMillis();
+                int available = 0;
+                for (int i = 0; i < size; i++) {
+                    long start = leased[(head + i) % leased.length];
+                    if (start <= now && start + leaseTtlMillis >= now) {
+                        available++;
+                    }
+                }
+                return available;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        // Первое несгоревшее разрешение из запаса или -1. Разрешение с началом в будущем не сгорает
+        private long poll(long now) {
+            while (size > 0) {
+                long start = leased[head];
+                head = (head + 1) % leased.length;
+                size--;
+                if (start + leaseTtlMillis >= now) {
+                    return start;
+                }
+            }
+            return -1;
+        }
+    }
+
+    /* Общее для узлов хранилище слотов лимита: на ключ limit слотов, каждый занят до момента busyUntil (epoch millis).
+     lease атомарно занимает на holdMillis count слотов, освобождающихся раньше всех, и возвращает по возрастанию
+     время начала каждого: сейчас для свободного слота, busyUntil для занятого
+     */
+    public interface PermitStore {
+        long[] lease(String key, int limit, int count, long holdMillis);
+    }
+
+    // Хранилище в памяти процесса: общий лимит для нескольких CrptApi в одной JVM и замена внешнего хранилища в тестах
+    public static final class InMemoryPermitStore implements PermitStore {
+        private final Map<String, long[]> slots = new ConcurrentHashMap<>();
+
+        @Override
+        public long[] lease(String key, int limit, int count, long holdMillis) {
+            long[] busyUntil = slots.computeIfAbsent(key, k -> new long[limit]);
+            synchronized (busyUntil) {
+                return takeSlots(busyUntil, count, holdMillis, System.currentTimeMillis());
+            }
+        }
+    }
+
+    /* Хранилище в таблице БД, общей для всех узлов:
+     CREATE TABLE crpt_rate_slots (permit_key VARCHAR(128) NOT NULL, slot INT NOT NULL, busy_until BIGINT NOT NULL,
+         PRIMARY KEY (permit_key, slot))
+     Строки ключа блокируются SELECT ... FOR UPDATE на одну короткую транзакцию, недостающие создаются при первом обращении
+     */
+    public static final class JdbcPermitStore implements PermitStore {
+        private static final int MAX_ATTEMPTS = 3;
+
+        private final DataSource dataSource;
+        private final String table;
+
+        public JdbcPermitStore(DataSource dataSource) {
+            this(dataSource, "crpt_rate_slots");
+        }
+
+        public JdbcPermitStore(DataSource dataSource, String table) {
+            if (dataSource == null || table == null) {
+                throw new IllegalArgumentException("Data source and table must not be null");
+            }
+            this.dataSource = dataSource;
+            this.table = table;
+        }
+
+        /* Если два узла одновременно создают слоты нового ключа, INSERT одного из них
+         нарушит первичный ключ; транзакция откатывается и повторяется уже по готовым строкам
+         */
+        @Override
+        public long[] lease(String key, int limit, int count, long holdMillis) {
+            for (int attempt = 1; ; attempt++) {
+                try (Connection connection = dataSource.getConnection()) {
+                    boolean autoCommit = connection.getAutoCommit();
+                    connection.setAutoCommit(false);
+                    try {
+                        long[] starts = lease(connection, key, limit, count, holdMillis);
+                        connection.commit();
+                        return starts;
+                    } catch (SQLException e) {
+                        connection.rollback();
+                        throw e;
+                    } finally {
+                        connection.setAutoCommit(autoCommit);
+                    }
+                } catch (SQLException e) {
+                    if (attempt == MAX_ATTEMPTS) {
+                        throw new IllegalStateException("Permit store is unavailable", e);
+                    }
+                }
+            }
+        }
+
+        private long[] lease(Connection connection, String key, int limit, int count, long holdMillis)
+                throws SQLException {
+            long[] busyUntil = new long[limit];
+            boolean[] present = new boolean[limit];
+            int rows = 0;
+            try (PreparedStatement select = connection.prepareStatement(
+                    "SELECT slot, busy_until FROM " + table + " WHERE permit_key = ? AND slot < ? FOR UPDATE")) {
+                select.setString(1, key);
+                select.setInt(2, limit);
+                try (ResultSet resultSet = select.executeQuery()) {
+                    while (resultSet.next()) {
+                        int slot = resultSet.getInt(1);
+                        busyUntil[slot] = resultSet.getLong(2);
+                        present[slot] = true;
+                        rows++;
+                    }
+                }
+            }
+            if (rows < limit) {
+                try (PreparedStatement insert = connection.prepareStatement(
+                        "INSERT INTO " + table + " (permit_key, slot, busy_until) VALUES (?, ?, 0)")) {
+                    for (int slot = 0; slot < limit; slot++) {
+                        if (!present[slot]) {
+                            insert.setString(1, key);
+                            insert.setInt(2, slot);
+                            insert.addBatch();
+                        }
+                    }
+                    insert.executeBatch();
+                }
+            }
+
+            long[] before = busyUntil.clone();
+            long[] starts = takeSlots(busyUntil, count, holdMillis, System.currentTimeMillis());
+            try (PreparedStatement update = connection.prepareStatement(
+                    "UPDATE " + table + " SET busy_until = ? WHERE permit_key = ? AND slot = ?")) {
+                for (int slot = 0; slot < limit; slot++) {
+                    if (busyUntil[slot] != before[slot]) {
+                        update.setLong(1, busyUntil[slot]);
+                        update.setString(2, key);
+                        update.setInt(3, slot);
+                        update.addBatch();
+                    }
+                }
+                update.executeBatch();
+            }
+            return starts;
+        }
+    }
+
+    // Общий для хранилищ алгоритм выдачи слотов, см. PermitStore
+    private static long[] takeSlots(long[] busyUntil, int count, long holdMillis, long now) {
+        long[] starts = new long[Math.min(count, busyUntil.length)];
+        for (int taken = 0; taken < starts.length; taken++) {
+            int earliest = 0;
+            for (int slot = 1; slot < busyUntil.length; slot++) {
+                if (busyUntil[slot] < busyUntil[earliest]) {
+                    earliest = slot;
+                }
+            }
+            starts[taken] = Math.max(now, busyUntil[earliest]);
+            busyUntil[earliest] = starts[taken] + holdMillis;
+        }
+        return starts;
+    }
+
+    // Внутренние классы для объектов запроса/ответа
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    public static class Document {
+        private String description;
+        private String doc_id;
+        private String doc_status;
+        private String doc_type;
+        private boolean importRequest;
+        private String owner_inn;
+        private String participant_inn;
+        private String producer_inn;
+        private String production_date;
+        private String production_type;
+        private Product[] products;
+        private String reg_date;
+        private String reg_number;
+        private String productGroup;
+
+        // Getters and setters
+        public String getDescription() {
+            return description;
+        }
+
+        public void setDescription(String description) {
+            this.description = description;
+        }
+
+        public String getDoc_id() {
+            return doc_id;
+        }
+
+        public void setDoc_id(String doc_id) {
+            this.doc_id = doc_id;
+        }
+
+        public String getDoc_status() {
+            return doc_status;
+        }
+
+        public void setDoc_status(String doc_status) {
+            this.doc_status = doc_status;
+        }
+
+        public String getDoc_type() {
+            return doc_type;
+        }
+
+        public void setDoc_type(String doc_type) {
+            this.doc_type = doc_type;
+        }
+
+        public boolean isImportRequest() {
+            return importRequest;
+        }
+
+        public void setImportRequest(boolean importRequest) {
+            this.importRequest = importRequest;
+        }
+
+        public String getOwner_inn() {
+            return owner_inn;
+        }
+
+        public void setOwner_inn(String owner_inn) {
+            this.owner_inn = owner_inn;
+        }
+
+        public String getParticipant_inn() {
+            return participant_inn;
+        }
+
+        public void setParticipant_inn(String participant_inn) {
+            this.participant_inn = participant_inn;
+        }
+
+        public String getProducer_inn() {
+            return producer_inn;
+        }
+
+        public void setProducer_inn(String producer_inn) {
+            this.producer_inn = producer_inn;
+        }
+
+        public String getProduction_date() {
+            return production_date;
+        }
+
+        public void setProduction_date(String production_date) {
+            this.production_date = production_date;
+        }
+
+        public String getProduction_type() {
+            return production_type;
+        }
+
+        public void setProduction_type(String production_type) {
+            this.production_type = production_type;
+        }
+
+        public Product[] getProducts() {
+            return products;
+        }
+
+        public void setProducts(Product[] products) {
+            this.products = products;
+        }
+
+        public String getReg_date() {
+            return reg_date;
+        }
+
+        public void setReg_date(String reg_date) {
+            this.reg_date = reg_date;
+        }
+
+        public String getReg_number() {
+            return reg_number;
+        }
+
+        public void setReg_number(String reg_number) {
+            this.reg_number = reg_number;
+        }
+
+        /* Явно заданная группа или группа первого товара, код ТН ВЭД которого есть в справочнике
+         ProductGroupIndex. Если ни один код не найден - clothes, как раньше. Вызывается на каждый запрос
+         и ничего не аллоцирует
+         */
+        public String getProductGroup() {
+            if (productGroup != null) {
+                return productGroup;
+            }
+            if (products != null) {
+                ProductGroupIndex index = ProductGroupIndex.defaultIndex();
+                for (Product product : products) {
+                    if (product != null && product.getTnved_code() != null) {
+                        String group = index.lookup(product.getTnved_code());
+                        if (group != null) {
+                            return group;
+                        }
+                    }
+                }
+            }
+            return DEFAULT_PRODUCT_GROUP;
+        }
+
+        public void setProductGroup(String productGroup) {
+            this.productGroup = productGroup;
+        }
+
+        /* Разбивает документ на документы по товарным группам за один проход по товарам, порядок групп -
+         по первому товару группы. Товары с неизвестным кодом ТН ВЭД идут в группу по умолчанию.
+         Части получают doc_id исходного с суффиксом группы ("<doc_id>-<группа>"), чтобы API и дедупликация
+         различали их. Документ с явно заданной группой или с товарами одной группы возвращается как есть
+         */
+        public List<Document> splitByProductGroup() {
+            if (productGroup != null || products == null || products.length == 0) {
+                return List.of(this);
+            }
+            ProductGroupIndex index = ProductGroupIndex.defaultIndex();
+            Map<String, List<Product>> groups = new LinkedHashMap<>();
+            for (Product product : products) {
+                String group = product != null && product.getTnved_code() != null
+                        ? index.lookup(product.getTnved_code()) : null;
+                groups.computeIfAbsent(group != null ? group : DEFAULT_PRODUCT_GROUP, g -> new ArrayList<>())
+                        .add(product);
+            }
+            if (groups.size() == 1) {
+                return List.of(this);
+            }
+            List<Document> documents = new ArrayList<>(groups.size());
+            for (Map.Entry<String, List<Product>> group : groups.entrySet()) {
+                Document document = copyHeader();
+                document.doc_id = doc_id != null ? doc_id + "-" + group.getKey() : null;
+                document.setProducts(group.getValue().toArray(new Product[0]));
+                document.setProductGroup(group.getKey());
+                documents.add(document);
+            }
+            return documents;
+        }
+
+        private Document copyHeader() {
+            Document document = new Document();
+            document.description = description;
+            document.doc_id = doc_id;
+            document.doc_status = doc_status;
+            document.doc_type = doc_type;
+            document.importRequest = importRequest;
+            document.owner_inn = owner_inn;
+            document.participant_inn = participant_inn;
+            document.producer_inn = producer_inn;
+            document.production_date = production_date;
+            document.production_type = production_type;
+            document.reg_date = reg_date;
+            document.reg_number = reg_number;
+            return document;
+        }
+    }
+
+    /* Справочник ТН ВЭД -> товарная группа в виде десятичного префиксного дерева в плоских массивах:
+     потомок узла node по цифре d - children[node * 10 + d], 0 - потомка нет (корень ничей не потомок).
+     Ищется самый длинный совпавший префикс, поиск ничего не аллоцирует.
+     Справочник по умолчанию - ресурс crptapi/tnved-product-groups.txt, строки вида "префикс;группа"
+     */
+    public static final class ProductGroupIndex {
+        private final int[] children;
+        private final int[] groups;
+        private final String[] names;
+
+        private ProductGroupIndex(int[] children, int[] groups, String[] names) {
+            this.children = children;
+            this.groups = groups;
+            this.names = names;
+        }
+
+        public static ProductGroupIndex defaultIndex() {
+            return DefaultIndexHolder.INSTANCE;
+        }
+
+        public static ProductGroupIndex load(InputStream in) throws IOException {
+            int[] children = new int[10 * 64];
+            int[] groups = new int[64];
+            Arrays.fill(groups, -1);
+            List<String> names = new ArrayList<>();
+            int nodes = 1;
+
+            BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+            String line;
+            int lineNumber = 0;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                int separator = line.indexOf(';');
+                String prefix = separator > 0 ? line.substring(0, separator).trim() : "";
+                String name = separator > 0 ? line.substring(separator + 1).trim() : "";
+                if (prefix.isEmpty() || name.isEmpty() || !prefix.chars().allMatch(c -> c >= '0' && c <= '9')) {
+                    throw new IOException("Invalid TNVED mapping at line " + lineNumber + ": " + line);
+                }
+
+                int node = 0;
+                for (int i = 0; i < prefix.length(); i++) {
+                    int slot = node * 10 + (prefix.charAt(i) - '0');
+                    if (children[slot] == 0) {
+                        if (nodes == groups.length) {
+                            groups = Arrays.copyOf(groups, nodes * 2);
+                            Arrays.fill(groups, nodes, nodes * 2, -1);
+                            children = Arrays.copyOf(children, nodes * 2 * 10);
+                        }
+                        children[slot] = nodes++;
+                    }
+                    node = children[slot];
+                }
+                int group = names.indexOf(name);
+                if (group < 0) {
+                    group = names.size();
+                    names.add(name);
+                }
+                groups[node] = group;
+            }
+            return new ProductGroupIndex(Arrays.copyOf(children, nodes * 10), Arrays.copyOf(groups, nodes),
+                    names.toArray(new String[0]));
+        }
+
+        // Группа по самому длинному совпавшему префиксу или null. Разбор останавливается на первой не-цифре
+        public String lookup(CharSequence tnvedCode) {
+            int node = 0;
+            int group = groups[0];
+            for (int i = 0; i < tnvedCode.length(); i++) {
+                int digit = tnvedCode.charAt(i) - '0';
+                if (digit < 0 || digit > 9) {
+                    break;
+                }
+                node = children[node * 10 + digit];
+                if (node == 0) {
+                    break;
+                }
+                if (groups[node] >= 0) {
+                    group = groups[node];
+                }
+            }
+            return group >= 0 ? names[group] : null;
+        }
+
+        private static final class DefaultIndexHolder {
+            static final ProductGroupIndex INSTANCE = loadDefault();
+
+            private static ProductGroupIndex loadDefault() {
+                try (InputStream in = CrptApi.class.getResourceAsStream("tnved-product-groups.txt")) {
+                    if (in == null) {
+                        throw new IllegalStateException("TNVED mapping resource crptapi/tnved-product-groups.txt not found");
+                    }
+                    return load(in);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+        }
+    }
+
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    public static class Product {
+        private String certificate_document;
+        private String certificate_document_date;
+        private String certificate_document_number;
+        private String owner_inn;
+        private String producer_inn;
+        private String production_date;
+        private String tnved_code;
+        private String uit_code;
+        private String uitu_code;
+
+        // Getters and setters
+        public String getCertificate_document() {
+            return certificate_document;
+        }
+
+        public void setCertificate_document(String certificate_document) {
+            this.certificate_document = certificate_document;
+        }
+
+        public String getCertificate_document_date() {
+            return certificate_document_date;
+        }
+
+        public void setCertificate_document_date(String certificate_document_date) {
+            this.certificate_document_date = certificate_document_date;
+        }
+
+        public String getCertificate_document_number() {
+            return certificate_document_number;
+        }
+
+        public void setCertificate_document_number(String certificate_document_number) {
+            this.certificate_document_number = certificate_document_number;
+        }
+
+        public String getOwner_inn() {
+            return owner_inn;
+        }
+
+        public void setOwner_inn(String owner_inn) {
+            this.owner_inn = owner_inn;
+        }
+
+        public String getProducer_inn() {
+            return producer_inn;
+        }
+
+        public void setProducer_inn(String producer_inn) {
+            this.producer_inn = producer_inn;
+        }
+
+        public String getProduction_date() {
+            return production_date;
+        }
+
+        public void setProduction_date(String production_date) {
+            this.production_date = production_date;
+        }
+
+        public String getTnved_code() {
+            return tnved_code;
+        }
+
+        public void setTnved_code(String tnved_code) {
+            this.tnved_code = tnved_code;
+        }
+
+        public String getUit_code() {
+            return uit_code;
+        }
+
+        public void setUit_code(String uit_code) {
+            this.uit_code = uit_code;
+        }
+
+        public String getUitu_code() {
+            return uitu_code;
+        }
+
+        public void setUitu_code(String uitu_code) {
+            this.uitu_code = uitu_code;
+        }
+    }
+
+    /* Разбор кода маркировки (uit_code) или кода транспортной упаковки (uitu_code) в формате GS1 DataMatrix:
+     идентификаторы применения (AI) с фиксированной длиной значения (00 - SSCC, 01 - GTIN, 17, 310n, 8005)
+     и переменной, которая заканчивается разделителем GS (0x1D) или концом кода (10, 21 - серийный номер,
+     91, 92, 93 - криптохвост). Префикс "]d2" и GS в начале (FNC1) пропускаются.
+     Объект переиспользуется: parse заполняет поля-представления (Field) без копирования символов,
+     поэтому разбор ничего не аллоцирует. Поля действительны до следующего parse и пока не изменился
+     исходный byte[]; toString() дает копию. Один объект - один поток
+     */
+    public static final class MarkingCode {
+        static final char GS = 0x1D;
+
+        private final Field sscc = new Field();
+        private final Field gtin = new Field();
+        private final Field serial = new Field();
+        private final Field batch = new Field();
+        private final Field cryptoKey = new Field();
+        private final Field cryptoCode = new Field();
+        private CharSequence chars;
+        private byte[] bytes;
+
+        // false, если код не разобран: неизвестный AI, не цифры в числовом поле, обрезанное значение
+        public boolean parse(CharSequence code) {
+            chars = code;
+            bytes = null;
+            return parse(0, code.length());
+        }
+
+        // Байты кода в ASCII, как их отдает сканер
+        public boolean parse(byte[] code, int offset, int length) {
+            chars = null;
+            bytes = code;
+            return parse(offset, offset + length);
+        }
+
+        public Field getSscc() {
+            return sscc;
+        }
+
+        public Field getGtin() {
+            return gtin;
+        }
+
+        public Field getSerial() {
+            return serial;
+        }
+
+        public Field getBatch() {
+            return batch;
+        }
+
+        // AI 91 - ключ проверки
+        public Field getCryptoKey() {
+            return cryptoKey;
+        }
+
+        // AI 92 - код проверки, для групп с коротким криптохвостом AI 93
+        public Field getCryptoCode() {
+            return cryptoCode;
+        }
+
+        private boolean parse(int start, int end) {
+            sscc.clear();
+            gtin.clear();
+            serial.clear();
+            batch.clear();
+            cryptoKey.clear();
+            cryptoCode.clear();
+
+            int position = start;
+            if (end - position >= 3 && at(position) == ']' && at(position + 1) == 'd' && at(position + 2) == '2') {
+                position += 3;
+            }
+            while (position < end) {
+                if (at(position) == GS) {
+                    position++;
+                    continue;
+                }
+                if (end - position < 2 || !digits(position, position + 2)) {
+                    return false;
+                }
+                int ai = (at(position) - '0') * 10 + at(position + 1) - '0';
+                position += 2;
+                switch (ai) {
+                    case 0:
+                        position = fixed(sscc, position, end, 18);
+                        break;
+                    case 1:
+                        position = fixed(gtin, position, end, 14);
+                        break;
+                    case 17:
+                        position = fixed(null, position, end, 6);
+                        break;
+                    case 10:
+                        position = variable(batch, position, end, 20);
+                        break;
+                    case 21:
+                        position = variable(serial, position, end, 20);
+                        break;
+                    case 91:
+                        position = variable(cryptoKey, position, end, 90);
+                        break;
+                    case 92:
+                    case 93:
+                        position = variable(cryptoCode, position, end, 90);
+                        break;
+                    case 31:
+                        // 310n - масса нетто, n знаков после запятой
+                        position = end - position >= 2 && at(position) == '0' && digits(position + 1, position + 2)
+                                ? fixed(null, position + 2, end, 6) : -1;
+                        break;
+                    case 80:
+                        // 8005 - цена единицы
+                        position = end - position >= 2 && at(position) == '0' && at(position + 1) == '5'
+                                ? fixed(null, position + 2, end, 6) : -1;
+                        break;
+                    default:
+                        return false;
+                }
+                if (position < 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        // Числовое значение считается попутно с проверкой цифр, toLong() потом не читает символы заново
+        private int fixed(Field field, int position, int end, int length) {
+            if (end - position < length) {
+                return -1;
+            }
+            long value = 0;
+            for (int i = position; i < position + length; i++) {
+                int digit = at(i) - '0';
+                if (digit < 0 || digit > 9) {
+                    return -1;
+                }
+                value = value * 10 + digit;
+            }
+            if (field != null) {
+                field.set(chars, bytes, position, length);
+                field.value = value;
+            }
+            return position + length;
+        }
+
+        private int variable(Field field, int position, int end, int maxLength) {
+            int limit = Math.min(end, position + maxLength);
+            int i = position;
+            while (i < limit && at(i) != GS) {
+                i++;
+            }
+            if (i == position || i < end && at(i) != GS) {
+                return -1;
+            }
+            field.set(chars, bytes, position, i - position);
+            return i;
+        }
+
+        private boolean digits(int from, int to) {
+            for (int i = from; i < to; i++) {
+                char c = at(i);
+                if (c < '0' || c > '9') {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private char at(int index) {
+            return bytes != null ? (char) (bytes[index] & 0xFF) : chars.charAt(index);
+        }
+
+        /* Представление части кода без копирования. Пустое (length() == 0), если AI в коде нет.
+         Для группировки по GTIN без строк - toLong(), для сравнения - contentEquals
+         */
+        public static final class Field implements CharSequence {
+            private CharSequence chars;
+            private byte[] bytes;
+            private int offset;
+            private int length;
+            private long value = -1;
+
+            void set(CharSequence chars, byte[] bytes, int offset, int length) {
+                this.chars = chars;
+                this.bytes = bytes;
+                this.offset = offset;
+                this.length = length;
+                this.value = -1;
+            }
+
+            void clear() {
+                set(null, null, 0, 0);
+            }
+
+            public boolean isPresent() {
+                return length > 0;
+            }
+
+            @Override
+            public int length() {
+                return length;
+            }
+
+            @Override
+            public char charAt(int index) {
+                if (index < 0 || index >= length) {
+                    throw new IndexOutOfBoundsException("Index " + index + " out of bounds for length " + length);
+                }
+                return bytes != null ? (char) (bytes[offset + index] & 0xFF) : chars.charAt(offset + index);
+            }
+
+            @Override
+            public CharSequence subSequence(int start, int end) {
+                return toString().substring(start, end);
+            }
+
+            // Значение числового поля (GTIN - 14 цифр, SSCC - 18) как число
+            public long toLong() {
+                if (this.value >= 0) {
+                    return this.value;
+                }
+                long value = 0;
+                for (int i = 0; i < length; i++) {
+                    char c = charAt(i);
+                    if (c < '0' || c > '9') {
+                        throw new NumberFormatException("Not a numeric field: " + this);
+                    }
+                    value = value * 10 + c - '0';
+                }
+                return value;
+            }
+
+            // Контрольная цифра GTIN/SSCC по модулю 10 (веса 3 и 1 справа налево)
+            public boolean isCheckDigitValid() {
+                if (length < 2) {
+                    return false;
+                }
+                int sum = 0;
+                for (int i = length - 2, weight = 3; i >= 0; i--, weight = 4 - weight) {
+                    sum += (charAt(i) - '0') * weight;
+                }
+                return (10 - sum % 10) % 10 == charAt(length - 1) - '0';
+            }
+
+            public boolean contentEquals(CharSequence other) {
+                if (other.length() != length) {
+                    return false;
+                }
+                for (int i = 0; i < length; i++) {
+                    if (charAt(i) != other.charAt(i)) {
+                        return false;
+                    }
+                }
+                return true;
+            }
+
+            @Override
+            public String toString() {
+                if (bytes != null) {
+                    return new String(bytes, offset, length, StandardCharsets.ISO_8859_1);
+                }
+                return chars != null ? chars.subSequence(offset, offset + length).toString() : "";
+            }
+        }
+    }
+
+    /* Проверка документа до отправки: документ, который сервер все равно отклонит, не должен тратить
+     разрешение лимитера и HTTP-запрос. Проверяются контрольные суммы ИНН (10 цифр - организация,
+     12 - ИП), даты в формате yyyy-MM-dd с учетом длины месяца, непустой список товаров и 10-значный код
+     ТН ВЭД. Обязательны participant_inn, production_date документа и tnved_code товара, остальные поля
+     проверяются, если заданы. Возвращаются все нарушения сразу.
+     Корректный документ проверяется без аллокаций: строки читаются посимвольно, список нарушений
+     создается при первом нарушении. Товары документа больше PARALLEL_THRESHOLD проверяются частями
+     в общем ForkJoinPool, нарушения идут в порядке товаров
+     */
+    public static final class DocumentValidator {
+        static final int PARALLEL_THRESHOLD = 8192;
+
+        private static final int[] INN10_WEIGHTS = {2, 4, 10, 3, 5, 9, 4, 6, 8};
+        private static final int[] INN11_WEIGHTS = {7, 2, 4, 10, 3, 5, 9, 4, 6, 8};
+        private static final int[] INN12_WEIGHTS = {3, 7, 2, 4, 10, 3, 5, 9, 4, 6, 8};
+
+        private DocumentValidator() {
+        }
+
+        public static void validate(Document document) throws ValidationException {
+            List<String> violations = check(document);
+            if (!violations.isEmpty()) {
+                throw new ValidationException(violations);
+            }
+        }
+
+        // Пустой список, если нарушений нет
+        public static List<String> check(Document document) {
+            List<String> violations = null;
+            violations = checkInn(violations, "participant_inn", -1, document.getParticipant_inn(), true);
+            violations = checkInn(violations, "owner_inn", -1, document.getOwner_inn(), false);
+            violations = checkInn(violations, "producer_inn", -1, document.getProducer_inn(), false);
+            violations = checkDate(violations, "production_date", -1, document.getProduction_date(), true);
+            violations = checkDate(violations, "reg_date", -1, document.getReg_date(), false);
+
+            Product[] products = document.getProducts();
+            if (products == null || products.length == 0) {
+                violations = add(violations, "products", -1, "must not be empty");
+            } else if (products.length <= PARALLEL_THRESHOLD) {
+                violations = checkProducts(violations, products, 0, products.length);
+            } else {
+                List<String> productViolations = ForkJoinPool.commonPool()
+                        .invoke(new ProductsTask(products, 0, products.length));
+                if (productViolations != null) {
+                    violations = violations != null ? violations : new ArrayList<>();
+                    violations.addAll(productViolations);
+                }
+            }
+            return violations != null ? violations : List.of();
+        }
+
+        private static List<String> checkProducts(List<String> violations, Product[] products, int from, int to) {
+            for (int i = from; i < to; i++) {
+                Product product = products[i];
+                if (product == null) {
+                    violations = add(violations, "products", i, "must not be null");
+                    continue;
+                }
+                violations = checkInn(violations, "owner_inn", i, product.getOwner_inn(), false);
+                violations = checkInn(violations, "producer_inn", i, product.getProducer_inn(), false);
+                violations = checkDate(violations, "production_date", i, product.getProduction_date(), false);
+                violations = checkDate(violations, "certificate_document_date", i,
+                        product.getCertificate_document_date(), false);
+                String tnved = product.getTnved_code();
+                if (tnved == null || tnved.length() != 10 || !digits(tnved, 0, 10)) {
+                    violations = add(violations, "tnved_code", i, "must be 10 digits, got " + tnved);
+                }
+            }
+            return violations;
+        }
+
+        private static final class ProductsTask extends RecursiveTask<List<String>> {
+            private static final long serialVersionUID = 1L;
+
+            private final transient Product[] products;
+            private final int from;
+            private final int to;
+
+            ProductsTask(Product[] products, int from, int to) {
+                this.products = products;
+                this.from = from;
+                this.to = to;
+            }
+
+            @Override
+            protected List<String> compute() {
+                if (to - from <= PARALLEL_THRESHOLD) {
+                    return checkProducts(null, products, from, to);
+                }
+                int middle = (from + to) >>> 1;
+                ProductsTask right = new ProductsTask(products, middle, to);
+                right.fork();
+                List<String> left = new ProductsTask(products, from, middle).compute();
+                List<String> rightViolations = right.join();
+                if (left == null) {
+                    return rightViolations;
+                }
+                if (rightViolations != null) {
+                    left.addAll(rightViolations);
+                }
+                return left;
+            }
+        }
+
+        static boolean isValidInn(String inn) {
+            int length = inn.length();
+            if (length == 10) {
+                return digits(inn, 0, 10) && checkDigit(inn, INN10_WEIGHTS) == inn.charAt(9) - '0';
+            }
+            if (length == 12) {
+                return digits(inn, 0, 12)
+                        && checkDigit(inn, INN11_WEIGHTS) == inn.charAt(10) - '0'
+                        && checkDigit(inn, INN12_WEIGHTS) == inn.charAt(11) - '0';
+            }
+            return false;
+        }
+
+        private static int checkDigit(String inn, int[] weights) {
+            int sum = 0;
+            for (int i = 0; i < weights.length; i++) {
+                sum += (inn.charAt(i) - '0') * weights[i];
+            }
+            return sum % 11 % 10;
+        }
+
+        // yyyy-MM-dd, день в пределах месяца с учетом високосного года
+        static boolean isValidDate(String date) {
+            if (date.length() != 10 || date.charAt(4) != '-' || date.charAt(7) != '-'
+                    || !digits(date, 0, 4) || !digits(date, 5, 7) || !digits(date, 8, 10)) {
+                return false;
+            }
+            int year = number(date, 0, 4);
+            int month = number(date, 5, 7);
+            int day = number(date, 8, 10);
+            if (month < 1 || month > 12 || day < 1) {
+                return false;
+            }
+            boolean leap = year % 4 == 0 && (year % 100 != 0 || year % 400 == 0);
+            int days = month == 2 ? (leap ? 29 : 28) : (month == 4 || month == 6 || month == 9 || month == 11 ? 30 : 31);
+            return day <= days;
+        }
+
+        private static boolean digits(String value, int from, int to) {
+            for (int i = from; i < to; i++) {
+                char c = value.charAt(i);
+                if (c < '0' || c > '9') {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private static int number(String value, int from, int to) {
+            int result = 0;
+            for (int i = from; i < to; i++) {
+                result = result * 10 + value.charAt(i) - '0';
+            }
+            return result;
+        }
+
+        private static List<String> checkInn(List<String> violations, String field, int product, String inn,
+                                             boolean required) {
+            if (inn == null) {
+                return required ? add(violations, field, product, "must not be empty") : violations;
+            }
+            return isValidInn(inn) ? violations : add(violations, field, product, "invalid INN " + inn);
+        }
+
+        private static List<String> checkDate(List<String> violations, String field, int product, String date,
+                                              boolean required) {
+            if (date == null) {
+                return required ? add(violations, field, product, "must not be empty") : violations;
+            }
+            return isValidDate(date) ? violations
+                    : add(violations, field, product, "must be a date in yyyy-MM-dd format, got " + date);
+        }
+
+        // product < 0 - поле самого документа
+        private static List<String> add(List<String> violations, String field, int product, String message) {
+            if (violations == null) {
+                violations = new ArrayList<>();
+            }
+            violations.add((product < 0 ? field : "products[" + product + "]." + field) + ": " + message);
+            return violations;
+        }
+    }
+
+    /* Экранирует байты так же, как Jackson при записи строкового значения, и передает их дальше.
+     close() не закрывает целевой поток, чтобы после вложенного документа можно было дописать тело
+     */
+    private static final class JsonStringEscapingOutputStream extends OutputStream {
+        private static final int[] ESCAPES = CharTypes.get7BitOutputEscapes();
+        private static final byte[] HEX = "0123456789ABCDEF".getBytes(StandardCharsets.US_ASCII);
+
+        private final OutputStream out;
+
+        JsonStringEscapingOutputStream(OutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            int start = offset;
+            int end = offset + length;
+            for (int i = offset; i < end; i++) {
+                int b = bytes[i];
+                if (b >= 0 && ESCAPES[b] != 0) {
+                    out.write(bytes, start, i - start);
+                    writeEscaped(b);
+                    start = i + 1;
+                }
+            }
+            out.write(bytes, start, end - start);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (b >= 0 && b < ESCAPES.length && ESCAPES[b] != 0) {
+                writeEscaped(b);
+            } else {
+                out.write(b);
+            }
+        }
+
+        private void writeEscaped(int b) throws IOException {
+            int escape = ESCAPES[b];
+            out.write('\\');
+            if (escape > 0) {
+                out.write(escape);
+            } else {
+                out.write('u');
+                out.write('0');
+                out.write('0');
+                out.write(HEX[b >> 4]);
+                out.write(HEX[b & 0xF]);
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+    }
 
-Расширяемость: Структура классов позволяет легко добавлять новые методы API
+    /* Тело запроса в виде цепочки буферов из пула. HttpClient получает сами буферы пула как read-only
+     ByteBuffer-срезы, без склейки в один массив и без копирования. BodyPublishers.ofByteArray для этого
+     не подходит: на каждую подписку он копирует массив в новые ByteBuffer.
+     HttpClient может держать срезы до конца обмена, поэтому буферы возвращаются в пул в recycle,
+     после ответа, и только когда все подписки на тело завершены или отменены
+     */
+    static final class RequestBody extends OutputStream {
+        private final BufferPool pool;
+        private final List<byte[]> chunks = new ArrayList<>();
+        private byte[] current;
+        private int position;
+        private long length;
+        private long documentStart;
+        private long documentEnd;
+        // Под блокировкой this: активные подписки и отложенный recycle
+        private int subscriptions;
+        private boolean recycled;
 
-Обработка ошибок: Собственный исключительный класс ApiException
+        RequestBody(BufferPool pool) {
+            this.pool = pool;
+        }
 
-*/
-public class CrptApi {
+        @Override
+        public void write(int b) {
+            if (current == null || position == current.length) {
+                nextChunk();
+            }
+            current[position++] = (byte) b;
+            length++;
+        }
 
-    private final TimeUnit timeUnit;
-    private final int requestLimit;
-    private final Semaphore semaphore;
-    private final BlockingQueue<Instant> requestTimestamps;
-    private final HttpClient httpClient;
-    private final ObjectMapper objectMapper;
+        @Override
+        public void write(byte[] bytes, int offset, int count) {
+            while (count > 0) {
+                if (current == null || position == current.length) {
+                    nextChunk();
+                }
+                int n = Math.min(count, current.length - position);
+                System.arraycopy(bytes, offset, current, position, n);
+                position += n;
+                offset += n;
+                count -= n;
+                length += n;
+            }
+        }
 
-    public CrptApi(TimeUnit timeUnit, int requestLimit) {
-        if (requestLimit <= 0) {
-            throw new IllegalArgumentException("Request limit must be positive");
-        }
-        this.timeUnit = timeUnit;
-        this.requestLimit = requestLimit;
-        this.semaphore = new Semaphore(requestLimit, true);
-        this.requestTimestamps = new LinkedBlockingQueue<>(requestLimit);
-        this.httpClient = HttpClient.newBuilder()
-                .connectTimeout(Duration.ofSeconds(30))
-                .build();
-        this.objectMapper = new ObjectMapper();
-        this.objectMapper.setSerializationInclusion(JsonInclude.Include.NON_NULL);
-    }
+        private void nextChunk() {
+            current = pool.take();
+            position = 0;
+            chunks.add(current);
+        }
 
-    public void createDocument(Document document, String signature) throws InterruptedException, ApiException {
-        acquirePermission();
+        HttpRequest.BodyPublisher publisher() {
+            if (chunks.isEmpty()) {
+                return HttpRequest.BodyPublishers.noBody();
+            }
+            return new ChunkPublisher(chunks.toArray(new byte[0][]), position, length);
+        }
 
-        try {
-            String requestBody = buildRequestBody(document, signature);
-            String apiUrl = "https://ismp.crpt.ru/api/v3/lk/documents/create";
-            HttpRequest request = HttpRequest.newBuilder()
-                    .uri(URI.create(apiUrl + "?pg=" + document.getProductGroup()))
-                    .header("Content-Type", "application/json")
-                    .header("Authorization", "Bearer " + getAuthToken())
-                    .POST(HttpRequest.BodyPublishers.ofString(requestBody))
-                    .build();
+        long length() {
+            return length;
+        }
 
-            HttpResponse<String> response = httpClient.send(request, HttpResponse.BodyHandlers.ofString());
+        void markDocument(long start, long end) {
+            this.documentStart = start;
+            this.documentEnd = end;
+        }
 
-            if (response.statusCode() != 200) {
-                throw new ApiException("API request failed with status: " + response.statusCode() +
-                        ", body: " + response.body());
+        // FNV-1a 64 по байтам документа без подписи: подпись повторной отправки может отличаться временем подписания
+        long documentHash() {
+            long hash = 0xcbf29ce484222325L;
+            long offset = 0;
+            for (int i = 0; i < chunks.size() && offset < documentEnd; i++) {
+                byte[] chunk = chunks.get(i);
+                int from = (int) Math.max(0, documentStart - offset);
+                int to = (int) Math.min(chunk.length, documentEnd - offset);
+                for (int j = from; j < to; j++) {
+                    hash = (hash ^ (chunk[j] & 0xff)) * 0x100000001b3L;
+                }
+                offset += chunk.length;
             }
+            return hash;
+        }
 
-            // Process successful response if needed
-            System.out.println("Document created successfully: " + response.body());
+        byte[] toByteArray() {
+            byte[] bytes = new byte[Math.toIntExact(length)];
+            int offset = 0;
+            for (int i = 0; i < chunks.size(); i++) {
+                byte[] chunk = chunks.get(i);
+                int n = i == chunks.size() - 1 ? position : chunk.length;
+                System.arraycopy(chunk, 0, bytes, offset, n);
+                offset += n;
+            }
+            return bytes;
+        }
 
-        } catch (JsonProcessingException e) {
-            throw new ApiException("JSON serialization error", e);
-        } catch (IOException e) {
-            throw new ApiException("HTTP request error", e);
-        } finally {
-            releasePermission();
+        // Если HttpClient еще читает тело, буферы вернет в пул последняя завершившаяся подписка
+        void recycle() {
+            synchronized (this) {
+                recycled = true;
+                if (subscriptions > 0) {
+                    return;
+                }
+            }
+            release();
         }
-    }
 
-    private void acquirePermission() throws InterruptedException {
-        semaphore.acquire();
+        private void subscribed() {
+            synchronized (this) {
+                subscriptions++;
+            }
+        }
 
-        Instant now = Instant.now();
-        Instant oldestTimestamp = requestTimestamps.peek();
+        private void unsubscribed() {
+            synchronized (this) {
+                if (--subscriptions > 0 || !recycled) {
+                    return;
+                }
+            }
+            release();
+        }
 
-        while (oldestTimestamp != null &&
-                Duration.between(oldestTimestamp, now).toMillis() > timeUnit.toMillis(1)) {
-            requestTimestamps.poll();
-            oldestTimestamp = requestTimestamps.peek();
+        private synchronized void release() {
+            for (byte[] chunk : chunks) {
+                pool.give(chunk);
+            }
+            chunks.clear();
+            current = null;
+            position = 0;
+            length = 0;
+            documentStart = 0;
+            documentEnd = 0;
         }
 
-        while (requestTimestamps.size() >= requestLimit) {
-            Instant first = requestTimestamps.take();
-            long elapsed = Duration.between(first, now).toMillis();
-            long waitTime = timeUnit.toMillis(1) - elapsed;
+        private final class ChunkPublisher implements HttpRequest.BodyPublisher {
+            private final byte[][] slices;
+            private final int lastLength;
+            private final long contentLength;
+
+            ChunkPublisher(byte[][] slices, int lastLength, long contentLength) {
+                this.slices = slices;
+                this.lastLength = lastLength;
+                this.contentLength = contentLength;
+            }
+
+            @Override
+            public long contentLength() {
+                return contentLength;
+            }
 
-            if (waitTime > 0) {
-                Thread.sleep(waitTime);
-                now = Instant.now();
+            // Каждая попытка отправки подписывается заново и получает срезы с начала
+            @Override
+            public void subscribe(Flow.Subscriber<? super ByteBuffer> subscriber) {
+                subscribed();
+                subscriber.onSubscribe(new ChunkSubscription(subscriber, slices, lastLength));
             }
         }
 
-        requestTimestamps.offer(now);
-    }
+        /* Выдача срезов по запросу подписчика. request может вызываться из onNext того же потока:
+         счетчик wip не дает рекурсии, второй вызов только добавляет спрос для уже идущего цикла
+         */
+        private final class ChunkSubscription implements Flow.Subscription {
+            private final Flow.Subscriber<? super ByteBuffer> subscriber;
+            private final byte[][] slices;
+            private final int lastLength;
+            private final AtomicLong demand = new AtomicLong();
+            private final AtomicInteger wip = new AtomicInteger();
+            private final AtomicBoolean done = new AtomicBoolean();
+            private int next;
 
-    private void releasePermission() {
-        semaphore.release();
-    }
+            ChunkSubscription(Flow.Subscriber<? super ByteBuffer> subscriber, byte[][] slices, int lastLength) {
+                this.subscriber = subscriber;
+                this.slices = slices;
+                this.lastLength = lastLength;
+            }
+
+            @Override
+            public void request(long n) {
+                if (done.get()) {
+                    return;
+                }
+                if (n <= 0) {
+                    if (terminate()) {
+                        subscriber.onError(new IllegalArgumentException("Requested " + n + " items"));
+                    }
+                    return;
+                }
+                demand.accumulateAndGet(n, (current, added) -> current + added < 0 ? Long.MAX_VALUE : current + added);
+                drain();
+            }
 
-    private String buildRequestBody(Document document, String signature) throws JsonProcessingException {
-        CreateDocumentRequest request = new CreateDocumentRequest();
-        request.setDocument_format("MANUAL");
-        request.setProduct_document(objectMapper.writeValueAsString(document));
-        request.setSignature(signature);
-        request.setType("LP_INTRODUCE_GOODS");
+            @Override
+            public void cancel() {
+                terminate();
+            }
 
-        return objectMapper.writeValueAsString(request);
-    }
+            private void drain() {
+                if (wip.getAndIncrement() != 0) {
+                    return;
+                }
+                int missed = 1;
+                do {
+                    while (!done.get() && next < slices.length && demand.get() > 0) {
+                        demand.decrementAndGet();
+                        int i = next++;
+                        int n = i == slices.length - 1 ? lastLength : slices[i].length;
+                        subscriber.onNext(ByteBuffer.wrap(slices[i], 0, n).asReadOnlyBuffer());
+                    }
+                    if (next == slices.length && terminate()) {
+                        subscriber.onComplete();
+                    }
+                    missed = wip.addAndGet(-missed);
+                } while (missed != 0);
+            }
 
-    /* Реализовать логику аутентификации на основе раздела 1.2 документации API
-     Это заглушка. Для фактической реализации потребуется:
-      1. GET-запрос к /api/v3/auth/cert/key для получения UUID и данных
-      2. Подписать данные с помощью UKEP
-      3. POST-запрос к /api/v3/auth/cert/ с подписанными данными для получения токена
-      */
-    private String getAuthToken() {
-        return "your_auth_token_here";
+            private boolean terminate() {
+                if (!done.compareAndSet(false, true)) {
+                    return false;
+                }
+                unsubscribed();
+                return true;
+            }
+        }
     }
 
-    // Внутренние классы для объектов запроса/ответа
-    public static class Document {
-        private String description;
-        private String doc_id;
-        private String doc_status;
-        private String doc_type;
-        private boolean importRequest;
-        private String owner_inn;
-        private String participant_inn;
-        private String producer_inn;
-        private String production_date;
-        private String production_type;
-        private Product[] products;
-        private String reg_date;
-        private String reg_number;
+    // Ограниченный пул буферов одного размера, лишние буферы отдаются сборщику мусора
+    static final class BufferPool {
+        static final int BUFFER_SIZE = 16 * 1024;
 
-        // Getters and setters
-        public String getDescription() {
-            return description;
-        }
+        private final Queue<byte[]> buffers = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger size = new AtomicInteger();
+        private final int maxBuffers;
 
-        public void setDescription(String description) {
-            this.description = description;
+        BufferPool(int maxBuffers) {
+            this.maxBuffers = maxBuffers;
         }
 
-        public String getDoc_id() {
-            return doc_id;
+        byte[] take() {
+            byte[] buffer = buffers.poll();
+            if (buffer == null) {
+                return new byte[BUFFER_SIZE];
+            }
+            size.decrementAndGet();
+            return buffer;
         }
 
-        public void setDoc_id(String doc_id) {
-            this.doc_id = doc_id;
+        void give(byte[] buffer) {
+            if (size.incrementAndGet() <= maxBuffers) {
+                buffers.offer(buffer);
+            } else {
+                size.decrementAndGet();
+            }
         }
+    }
 
-        public String getDoc_status() {
-            return doc_status;
+    /* Дедупликация по doc_id и хешу содержимого документа (без подписи). Одновременные повторы получают
+     future первой отправки; успешно отправленные ключи помнятся ttl в ограниченном кеше, вытесняются самые старые.
+     Неуспешная отправка не запоминается, чтобы повтор мог пройти. Документы без doc_id не склеиваются
+     */
+    private static final class Deduplicator {
+        private final long ttlNanos;
+        private final int capacity;
+        private final Map<DedupKey, CompletableFuture<CreateDocumentResult>> inFlight = new ConcurrentHashMap<>();
+        private final LinkedHashMap<DedupKey, CompletedSubmission> recent = new LinkedHashMap<>();
+
+        Deduplicator(Duration ttl, int capacity) {
+            this.ttlNanos = ttl.toNanos();
+            this.capacity = capacity;
         }
 
-        public void setDoc_status(String doc_status) {
-            this.doc_status = doc_status;
+        /* Результат уже идущей или недавно успешной отправки того же документа либо null - тогда отправлять
+         должен вызывающий, и его result становится общим для повторов
+         */
+        CompletableFuture<CreateDocumentResult> claim(Document document, RequestBody body,
+                                                      CompletableFuture<CreateDocumentResult> result) {
+            if (document.getDoc_id() == null) {
+                return null;
+            }
+            DedupKey key = new DedupKey(document.getDoc_id(), body.documentHash());
+            CompletableFuture<CreateDocumentResult> recentResult = recent(key);
+            if (recentResult != null) {
+                return recentResult;
+            }
+            CompletableFuture<CreateDocumentResult> existing = inFlight.putIfAbsent(key, result);
+            if (existing != null) {
+                return existing;
+            }
+            // Первая отправка могла завершиться между recent и putIfAbsent
+            recentResult = recent(key);
+            if (recentResult != null) {
+                inFlight.remove(key, result);
+                return recentResult;
+            }
+            result.whenComplete((created, error) -> {
+                if (error == null) {
+                    remember(key, result);
+                }
+                inFlight.remove(key, result);
+            });
+            return null;
         }
 
-        public String getDoc_type() {
-            return doc_type;
+        private synchronized CompletableFuture<CreateDocumentResult> recent(DedupKey key) {
+            CompletedSubmission completed = recent.get(key);
+            if (completed == null) {
+                return null;
+            }
+            if (System.nanoTime() - completed.completedAt > ttlNanos) {
+                recent.remove(key);
+                return null;
+            }
+            return completed.result;
         }
 
-        public void setDoc_type(String doc_type) {
-            this.doc_type = doc_type;
+        private synchronized void remember(DedupKey key, CompletableFuture<CreateDocumentResult> result) {
+            if (ttlNanos == 0 || capacity == 0) {
+                return;
+            }
+            recent.remove(key);
+            recent.put(key, new CompletedSubmission(result, System.nanoTime()));
+            Iterator<CompletedSubmission> eldest = recent.values().iterator();
+            while (recent.size() > capacity) {
+                eldest.next();
+                eldest.remove();
+            }
         }
 
-        public boolean isImportRequest() {
-            return importRequest;
+        private static final class CompletedSubmission {
+            final CompletableFuture<CreateDocumentResult> result;
+            final long completedAt;
+
+            CompletedSubmission(CompletableFuture<CreateDocumentResult> result, long completedAt) {
+                this.result = result;
+                this.completedAt = completedAt;
+            }
         }
+    }
 
-        public void setImportRequest(boolean importRequest) {
-            this.importRequest = importRequest;
+    private static final class DedupKey {
+        final String docId;
+        final long contentHash;
+
+        DedupKey(String docId, long contentHash) {
+            this.docId = docId;
+            this.contentHash = contentHash;
         }
 
-        public String getOwner_inn() {
-            return owner_inn;
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof DedupKey)) {
+                return false;
+            }
+            DedupKey key = (DedupKey) other;
+            return contentHash == key.contentHash && docId.equals(key.docId);
         }
 
-        public void setOwner_inn(String owner_inn) {
-            this.owner_inn = owner_inn;
+        @Override
+        public int hashCode() {
+            return docId.hashCode() * 31 + Long.hashCode(contentHash);
         }
+    }
 
-        public String getParticipant_inn() {
-            return participant_inn;
+    // Документ на пути через асинхронные попытки; поля попытки меняются только между попытками
+    private static final class PendingSend {
+        final Document document;
+        final RequestBody body;
+        final Priority priority;
+        final CompletableFuture<CreateDocumentResult> result;
+        final Runnable onSent;
+        HttpRequest request;
+        int attempt;
+        long retryDelayNanos;
+        long queuedAt;
+
+        PendingSend(Document document, RequestBody body, Priority priority,
+                    CompletableFuture<CreateDocumentResult> result, Runnable onSent) {
+            this.document = document;
+            this.body = body;
+            this.priority = priority;
+            this.result = result;
+            this.onSent = onSent;
         }
+    }
 
-        public void setParticipant_inn(String participant_inn) {
-            this.participant_inn = participant_inn;
+    /* Долговременная очередь отправки. enqueue только дописывает запись в отображенный в память сегмент
+     и сразу возвращается, фоновый поток отправляет документы в темпе лимитера и дописывает подтверждение.
+     Записи в отображенную память переживают падение JVM (страницы уже у ОС); от падения ОС защищает fsync,
+     который делается пачкой раз в syncInterval или явно через sync().
+     При открытии все неподтвержденные документы отправляются заново, то есть доставка "хотя бы один раз".
+     Подтверждается и неуспешная отправка: ее результат получает listener.
+     Запись: длина тела, CRC32C тела, тело (тип, id, для документа - подпись и JSON документа).
+     Оборванная запись в конце сегмента отбрасывается по CRC. Сегменты удаляются с начала, когда все
+     документы в них и во всех более старых сегментах подтверждены
+     */
+    public static final class Outbox implements AutoCloseable {
+        static final int SEGMENT_SIZE = 64 * 1024 * 1024;
+        private static final int HEADER = 8;
+        private static final byte ENQUEUED = 1;
+        private static final byte ACKNOWLEDGED = 2;
+
+        private final CrptApi api;
+        private final Path directory;
+        private final int segmentSize;
+        private final Consumer<SubmissionResult> listener;
+        private final ObjectReader documentReader;
+        private final ReentrantLock lock = new ReentrantLock();
+        private final BlockingQueue<Entry> pending = new LinkedBlockingQueue<>();
+        private final Deque<Segment> segments = new ArrayDeque<>();
+        private final ScheduledExecutorService syncer;
+        private final Thread sender;
+        private Segment current;
+        private long nextId;
+        private volatile boolean closed;
+
+        Outbox(CrptApi api, Path directory, Duration syncInterval, int segmentSize,
+               Consumer<SubmissionResult> listener) throws IOException {
+            this.api = api;
+            this.directory = directory;
+            this.segmentSize = segmentSize;
+            this.listener = listener;
+            this.documentReader = api.objectMapper.readerFor(Document.class)
+                    .without(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES);
+
+            Files.createDirectories(directory);
+            List<Path> files = new ArrayList<>();
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "outbox-*.log")) {
+                stream.forEach(files::add);
+            }
+            files.sort(null);
+            Map<Long, Entry> replayed = new LinkedHashMap<>();
+            long sequence = 0;
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                sequence = Long.parseLong(name.substring("outbox-".length(), name.length() - ".log".length()));
+                Segment segment = new Segment(file, sequence, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                segments.add(segment);
+                replay(segment, replayed);
+            }
+            current = new Segment(segmentPath(sequence + 1), sequence + 1,
+                    StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            segments.add(current);
+            pending.addAll(replayed.values());
+            deleteAcknowledgedSegments();
+
+            long syncNanos = syncInterval.toNanos();
+            this.syncer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "crpt-api-outbox-sync");
+                thread.setDaemon(true);
+                return thread;
+            });
+            syncer.scheduleWithFixedDelay(this::syncQuietly, syncNanos, syncNanos, TimeUnit.NANOSECONDS);
+            this.sender = new Thread(this::drain, "crpt-api-outbox");
+            sender.setDaemon(true);
+            sender.start();
         }
 
-        public String getProducer_inn() {
-            return producer_inn;
+        // Возвращает id записи. Документ переживет падение JVM сразу, падение ОС - после ближайшего fsync
+        // Документ с ошибками не попадает в журнал: ValidationException сразу
+        public long enqueue(Document document, String signature) throws ApiException {
+            if (api.validateDocuments) {
+                DocumentValidator.validate(document);
+            }
+            byte[] json;
+            try {
+                json = api.objectMapper.writeValueAsBytes(document);
+            } catch (IOException e) {
+                throw new ApiException("JSON serialization error", e);
+            }
+            byte[] signatureBytes = signature.getBytes(StandardCharsets.UTF_8);
+            lock.lock();
+            try {
+                if (closed) {
+                    throw new ApiException("Outbox is closed");
+                }
+                long id = nextId++;
+                int position = append(ENQUEUED, id, signatureBytes, json);
+                current.pendingCount++;
+                pending.add(new Entry(id, current, position, document, signature));
+                return id;
+            } catch (IOException e) {
+                throw new ApiException("Outbox write error", e);
+            } finally {
+                lock.unlock();
+            }
         }
 
-        public void setProducer_inn(String producer_inn) {
-            this.producer_inn = producer_inn;
+        // Документы, еще не получившие ответа, включая восстановленные при открытии
+        public int getPendingCount() {
+            lock.lock();
+            try {
+                int count = 0;
+                for (Segment segment : segments) {
+                    count += segment.pendingCount;
+                }
+                return count;
+            } finally {
+                lock.unlock();
+            }
         }
 
-        public String getProduction_date() {
-            return production_date;
+        // fsync всего записанного, не дожидаясь очередной пачки
+        public void sync() {
+            Segment segment;
+            int from;
+            int to;
+            lock.lock();
+            try {
+                segment = current;
+                from = segment.syncedPosition;
+                to = segment.buffer.position();
+            } finally {
+                lock.unlock();
+            }
+            if (to > from) {
+                segment.buffer.force(from, to - from);
+                lock.lock();
+                try {
+                    segment.syncedPosition = Math.max(segment.syncedPosition, to);
+                } finally {
+                    lock.unlock();
+                }
+            }
         }
 
-        public void setProduction_date(String production_date) {
-            this.production_date = production_date;
+        /* Отправки, начатые до закрытия, не подтверждаются и после перезапуска уйдут повторно
+         */
+        @Override
+        public void close() throws IOException {
+            lock.lock();
+            try {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+            } finally {
+                lock.unlock();
+            }
+            sender.interrupt();
+            syncer.shutdown();
+            lock.lock();
+            try {
+                current.buffer.force();
+                for (Segment segment : segments) {
+                    segment.channel.close();
+                }
+            } finally {
+                lock.unlock();
+            }
         }
 
-        public String getProduction_type() {
-            return production_type;
+        // Окно наперед в два лимита, как в submitAll
+        private void drain() {
+            Semaphore lookahead = new Semaphore(api.requestLimit * 2);
+            try {
+                while (!closed) {
+                    Entry entry = pending.take();
+                    if (entry.document == null) {
+                        try {
+                            entry.load(documentReader);
+                        } catch (IOException e) {
+                            acknowledge(entry);
+                            listener.accept(new SubmissionResult(null, null, new ApiException("Outbox record is corrupted", e)));
+                            continue;
+                        }
+                    }
+                    lookahead.acquire();
+                    AtomicBoolean released = new AtomicBoolean();
+                    Runnable release = () -> {
+                        if (released.compareAndSet(false, true)) {
+                            lookahead.release();
+                        }
+                    };
+                    api.submitAsync(entry.document, entry.signature, Priority.NORMAL, release).whenComplete((created, error) -> {
+                        release.run();
+                        acknowledge(entry);
+                        listener.accept(new SubmissionResult(entry.document, created, error != null ? unwrap(error) : null));
+                    });
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
         }
 
-        public void setProduction_type(String production_type) {
-            this.production_type = production_type;
+        private void acknowledge(Entry entry) {
+            lock.lock();
+            try {
+                if (closed) {
+                    return;
+                }
+                append(ACKNOWLEDGED, entry.id, null, null);
+                entry.segment.pendingCount--;
+                deleteAcknowledgedSegments();
+            } catch (IOException e) {
+                // Запись останется неподтвержденной и уйдет повторно после перезапуска
+            } finally {
+                lock.unlock();
+            }
         }
 
-        public Product[] getProducts() {
-            return products;
+        // Под блокировкой, возвращает положение записи в текущем сегменте. Длина пишется последней, CRC покрывает тело
+        private int append(byte type, long id, byte[] signature, byte[] json) throws IOException {
+            int bodyLength = 1 + 8 + (type == ENQUEUED ? 4 + signature.length + json.length : 0);
+            if (HEADER + bodyLength > segmentSize) {
+                throw new IOException("Record of " + bodyLength + " bytes does not fit into outbox segment");
+            }
+            if (current.buffer.remaining() < HEADER + bodyLength) {
+                current.buffer.force();
+                current = new Segment(segmentPath(current.sequence + 1), current.sequence + 1,
+                        StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                segments.add(current);
+            }
+            MappedByteBuffer buffer = current.buffer;
+            int start = buffer.position();
+            buffer.position(start + HEADER);
+            buffer.put(type).putLong(id);
+            if (type == ENQUEUED) {
+                buffer.putInt(signature.length).put(signature).put(json);
+            }
+            CRC32C crc = new CRC32C();
+            crc.update(buffer.duplicate().position(start + HEADER).limit(start + HEADER + bodyLength));
+            buffer.putInt(start + 4, (int) crc.getValue());
+            buffer.putInt(start, bodyLength);
+            return start;
         }
 
-        public void setProducts(Product[] products) {
-            this.products = products;
+        private void replay(Segment segment, Map<Long, Entry> replayed) throws IOException {
+            MappedByteBuffer buffer = segment.buffer;
+            CRC32C crc = new CRC32C();
+            while (buffer.remaining() >= HEADER) {
+                int start = buffer.position();
+                int bodyLength = buffer.getInt(start);
+                if (bodyLength < 9 || bodyLength > buffer.remaining() - HEADER) {
+                    break;
+                }
+                crc.reset();
+                crc.update(buffer.duplicate().position(start + HEADER).limit(start + HEADER + bodyLength));
+                if ((int) crc.getValue() != buffer.getInt(start + 4)) {
+                    break;
+                }
+                buffer.position(start + HEADER);
+                byte type = buffer.get();
+                long id = buffer.getLong();
+                nextId = Math.max(nextId, id + 1);
+                if (type == ENQUEUED) {
+                    // Документ читается из сегмента только перед отправкой, в памяти хранится лишь положение записи
+                    replayed.put(id, new Entry(id, segment, start, null, null));
+                    segment.pendingCount++;
+                } else {
+                    Entry entry = replayed.remove(id);
+                    if (entry != null) {
+                        entry.segment.pendingCount--;
+                    }
+                }
+                buffer.position(start + HEADER + bodyLength);
+            }
         }
 
-        public String getReg_date() {
-            return reg_date;
+        /* Подтверждения пишутся в текущий сегмент, поэтому удалять можно только с начала: подтверждения
+         из удаленного сегмента относятся к документам из него же или из еще более старых
+         */
+        private void deleteAcknowledgedSegments() throws IOException {
+            while (segments.peekFirst() != current && segments.peekFirst().pendingCount == 0) {
+                Segment segment = segments.pollFirst();
+                segment.channel.close();
+                Files.deleteIfExists(segment.path);
+            }
         }
 
-        public void setReg_date(String reg_date) {
-            this.reg_date = reg_date;
+        private void syncQuietly() {
+            try {
+                sync();
+            } catch (RuntimeException e) {
+                // Следующая попытка через syncInterval
+            }
         }
 
-        public String getReg_number() {
-            return reg_number;
+        private Path segmentPath(long sequence) {
+            return directory.resolve(String.format("outbox-%019d.log", sequence));
         }
 
-        public void setReg_number(String reg_number) {
-            this.reg_number = reg_number;
+        private final class Segment {
+            final Path path;
+            final long sequence;
+            final FileChannel channel;
+            final MappedByteBuffer buffer;
+            int pendingCount;
+            int syncedPosition;
+
+            Segment(Path path, long sequence, OpenOption... options) throws IOException {
+                this.path = path;
+                this.sequence = sequence;
+                this.channel = FileChannel.open(path, options);
+                long size = options[0] == StandardOpenOption.CREATE_NEW ? segmentSize : channel.size();
+                this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            }
         }
 
-        /* Извлечь группу товаров из товаров или типа документа. Это упрощенная реализация
-         */
-        public String getProductGroup() {
-            return "clothes"; // Default value
+        private static final class Entry {
+            final long id;
+            final Segment segment;
+            final int position;
+            Document document;
+            String signature;
+
+            Entry(long id, Segment segment, int position, Document document, String signature) {
+                this.id = id;
+                this.segment = segment;
+                this.position = position;
+                this.document = document;
+                this.signature = signature;
+            }
+
+            // Только для восстановленных записей, уже проверенных по CRC
+            void load(ObjectReader documentReader) throws IOException {
+                ByteBuffer buffer = segment.buffer.duplicate();
+                int end = position + HEADER + buffer.getInt(position);
+                buffer.position(position + HEADER + 1 + 8);
+                byte[] signatureBytes = new byte[buffer.getInt()];
+                buffer.get(signatureBytes);
+                byte[] json = new byte[end - buffer.position()];
+                buffer.get(json);
+                this.document = documentReader.readValue(json);
+                this.signature = new String(signatureBytes, StandardCharsets.UTF_8);
+            }
         }
     }
 
-    public static class Product {
-        private String certificate_document;
-        private String certificate_document_date;
-        private String certificate_document_number;
-        private String owner_inn;
-        private String producer_inn;
-        private String production_date;
-        private String tnved_code;
-        private String uit_code;
-        private String uitu_code;
+    /* Отслеживание статусов документов. Опросы идут через общий лимит с приоритетом BULK, поэтому создание
+     документов их обгоняет. Повторный track того же документа получает тот же результат без второго опроса.
+     Сроки опросов хранятся в хешированном колесе таймеров: один поток раз в тик забирает из ячейки
+     наступившие опросы (записи с более поздним сроком ждут следующего оборота колеса), так что 100 тысяч
+     документов - это 100 тысяч записей в списках, а не 100 тысяч задач в планировщике.
+     Наступившие в одном тике опросы уходят пачкой, в работе их не больше лимита запросов за окно:
+     остальные ждут в очереди и не занимают очередь приоритетов.
+     Интервал опроса - четверть возраста документа в пределах [minInterval, maxInterval]: свежие документы
+     обрабатываются за секунды, а застрявший документ не опрашивается каждую секунду часами.
+     404 и временные ошибки (сеть, 429, 5xx) не прерывают отслеживание, остальные статусы ответа - прерывают
+     */
+    public static final class StatusTracker implements AutoCloseable {
+        static final Set<String> FINAL_STATUSES =
+                Set.of("CHECKED_OK", "CHECKED_NOT_OK", "PROCESSING_ERROR", "CANCELLED", "ACCEPTED", "REJECTED");
 
-        // Getters and setters
-        public String getCertificate_document() {
-            return certificate_document;
-        }
+        private final CrptApi api;
+        private final long minIntervalNanos;
+        private final long maxIntervalNanos;
+        private final long timeoutNanos;
+        private final int maxOutstanding;
+        private final Map<String, Tracked> tracked = new ConcurrentHashMap<>();
+        private final ReentrantLock lock = new ReentrantLock();
+        private final List<List<Tracked>> wheel = new ArrayList<>();
+        private final int mask;
+        private final long tickNanos;
+        private final long startedAt = System.nanoTime();
+        private final ArrayDeque<Tracked> ready = new ArrayDeque<>();
+        private final ScheduledExecutorService ticker;
+        private long currentTick;
+        private int outstanding;
+        private volatile boolean closed;
 
-        public void setCertificate_document(String certificate_document) {
-            this.certificate_document = certificate_document;
+        StatusTracker(CrptApi api, Duration minInterval, Duration maxInterval, Duration timeout, int wheelSize) {
+            if (Integer.bitCount(wheelSize) != 1) {
+                throw new IllegalArgumentException("Wheel size must be a power of two");
+            }
+            this.api = api;
+            this.minIntervalNanos = minInterval.toNanos();
+            this.maxIntervalNanos = maxInterval.toNanos();
+            this.timeoutNanos = timeout.toNanos();
+            this.maxOutstanding = api.requestLimit;
+            this.mask = wheelSize - 1;
+            for (int i = 0; i < wheelSize; i++) {
+                wheel.add(new ArrayList<>());
+            }
+            // Тик мельче минимального интервала, чтобы округление до тика не удлиняло его заметно
+            this.tickNanos = Math.max(TimeUnit.MILLISECONDS.toNanos(1),
+                    Math.min(TimeUnit.MILLISECONDS.toNanos(100), minIntervalNanos / 4));
+            this.ticker = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "crpt-api-status");
+                thread.setDaemon(true);
+                return thread;
+            });
+            ticker.scheduleAtFixedRate(this::tick, tickNanos, tickNanos, TimeUnit.NANOSECONDS);
         }
 
-        public String getCertificate_document_date() {
-            return certificate_document_date;
+        public CompletableFuture<DocumentStatus> track(CreateDocumentResult created) {
+            return track(created.getDocumentId());
         }
 
-        public void setCertificate_document_date(String certificate_document_date) {
-            this.certificate_document_date = certificate_document_date;
+        // Future завершается с финальным статусом документа; отмена future не прекращает опрос для других
+        public CompletableFuture<DocumentStatus> track(String documentId) {
+            if (documentId == null) {
+                throw new IllegalArgumentException("Document id must not be null");
+            }
+            if (closed) {
+                return CompletableFuture.failedFuture(new ApiException("Status tracker is closed"));
+            }
+            Tracked entry = new Tracked(documentId, URI.create(api.documentInfoUri
+                    + URLEncoder.encode(documentId, StandardCharsets.UTF_8) + "/info"));
+            Tracked existing = tracked.putIfAbsent(documentId, entry);
+            if (existing != null) {
+                return existing.result.copy();
+            }
+            schedule(entry, minIntervalNanos);
+            return entry.result.copy();
         }
 
-        public String getCertificate_document_number() {
-            return certificate_document_number;
+        // Сколько документов еще без финального статуса
+        public int getTrackedCount() {
+            return tracked.size();
         }
 
-        public void setCertificate_document_number(String certificate_document_number) {
-            this.certificate_document_number = certificate_document_number;
+        private void schedule(Tracked entry, long delayNanos) {
+            lock.lock();
+            try {
+                long elapsed = System.nanoTime() + delayNanos - startedAt;
+                entry.deadlineTick = Math.max(currentTick + 1, (elapsed + tickNanos - 1) / tickNanos);
+                wheel.get((int) (entry.deadlineTick & mask)).add(entry);
+            } finally {
+                lock.unlock();
+            }
         }
 
-        public String getOwner_inn() {
-            return owner_inn;
+        // Тики, пропущенные из-за задержки потока, догоняются, и ни одна ячейка не пропускается
+        private void tick() {
+            long target = (System.nanoTime() - startedAt) / tickNanos;
+            lock.lock();
+            try {
+                while (currentTick < target) {
+                    currentTick++;
+                    List<Tracked> bucket = wheel.get((int) (currentTick & mask));
+                    for (int i = bucket.size() - 1; i >= 0; i--) {
+                        Tracked entry = bucket.get(i);
+                        if (entry.deadlineTick <= currentTick) {
+                            bucket.set(i, bucket.get(bucket.size() - 1));
+                            bucket.remove(bucket.size() - 1);
+                            ready.add(entry);
+                        }
+                    }
+                }
+            } finally {
+                lock.unlock();
+            }
+            pollReady();
         }
 
-        public void setOwner_inn(String owner_inn) {
-            this.owner_inn = owner_inn;
+        private void pollReady() {
+            while (true) {
+                Tracked entry;
+                lock.lock();
+                try {
+                    if (closed || outstanding >= maxOutstanding || (entry = ready.poll()) == null) {
+                        return;
+                    }
+                    outstanding++;
+                } finally {
+                    lock.unlock();
+                }
+                entry.polls++;
+                api.getAsync(entry.uri, Priority.BULK).whenComplete((response, error) -> {
+                    lock.lock();
+                    try {
+                        outstanding--;
+                    } finally {
+                        lock.unlock();
+                    }
+                    handle(entry, response, error);
+                    pollReady();
+                });
+            }
         }
 
-        public String getProducer_inn() {
-            return producer_inn;
+        private void handle(Tracked entry, HttpResponse<byte[]> response, Throwable error) {
+            if (closed) {
+                return;
+            }
+            long age = System.nanoTime() - entry.trackedAt;
+            int statusCode = response != null ? response.statusCode() : 0;
+            if (statusCode == 200) {
+                try {
+                    String status = api.parseDocumentStatus(response.body());
+                    if (status != null) {
+                        entry.lastStatus = status;
+                    }
+                } catch (IOException e) {
+                    complete(entry, null, new ApiException("Invalid document info response", e));
+                    return;
+                }
+                if (entry.lastStatus != null && FINAL_STATUSES.contains(entry.lastStatus)) {
+                    complete(entry, new DocumentStatus(entry.documentId, entry.lastStatus, entry.polls,
+                            Duration.ofNanos(age)), null);
+                    return;
+                }
+            } else if (response != null && statusCode != 404 && statusCode != 429 && statusCode < 500) {
+                complete(entry, null, new ApiException("Document info request failed with status: " + statusCode
+                        + ", body: " + new String(response.body(), StandardCharsets.UTF_8)));
+                return;
+            }
+            if (age >= timeoutNanos) {
+                complete(entry, null, new ApiException("Document " + entry.documentId
+                        + " has no final status after " + Duration.ofNanos(timeoutNanos)
+                        + ", last status: " + entry.lastStatus, error != null ? unwrap(error) : null));
+                return;
+            }
+            schedule(entry, Math.min(maxIntervalNanos, Math.max(minIntervalNanos, age / 4)));
         }
 
-        public void setProducer_inn(String producer_inn) {
-            this.producer_inn = producer_inn;
+        private void complete(Tracked entry, DocumentStatus status, ApiException error) {
+            tracked.remove(entry.documentId, entry);
+            if (error != null) {
+                entry.result.completeExceptionally(error);
+            } else {
+                entry.result.complete(status);
+            }
         }
 
-        public String getProduction_date() {
-            return production_date;
+        // Незавершенные future получают ApiException
+        @Override
+        public void close() {
+            closed = true;
+            ticker.shutdownNow();
+            lock.lock();
+            try {
+                wheel.forEach(List::clear);
+                ready.clear();
+            } finally {
+                lock.unlock();
+            }
+            for (Tracked entry : tracked.values()) {
+                complete(entry, null, new ApiException("Status tracker is closed"));
+            }
         }
 
-        public void setProduction_date(String production_date) {
-            this.production_date = production_date;
+        private static final class Tracked {
+            final String documentId;
+            final URI uri;
+            final CompletableFuture<DocumentStatus> result = new CompletableFuture<>();
+            final long trackedAt = System.nanoTime();
+            long deadlineTick;
+            int polls;
+            String lastStatus;
+
+            Tracked(String documentId, URI uri) {
+                this.documentId = documentId;
+                this.uri = uri;
+            }
         }
+    }
 
-        public String getTnved_code() {
-            return tnved_code;
+    /* Результат создания документа: идентификатор документа в ГИС МТ из ответа, статус, время запроса
+     последней попытки, число попыток и заголовки ответа
+     */
+    public static class CreateDocumentResult {
+        private final String documentId;
+        private final int statusCode;
+        private final Duration roundTrip;
+        private final int attempts;
+        private final HttpHeaders headers;
+
+        public CreateDocumentResult(String documentId, int statusCode, Duration roundTrip, int attempts,
+                                    HttpHeaders headers) {
+            this.documentId = documentId;
+            this.statusCode = statusCode;
+            this.roundTrip = roundTrip;
+            this.attempts = attempts;
+            this.headers = headers;
         }
 
-        public void setTnved_code(String tnved_code) {
-            this.tnved_code = tnved_code;
+        public String getDocumentId() {
+            return documentId;
         }
 
-        public String getUit_code() {
-            return uit_code;
+        public int getStatusCode() {
+            return statusCode;
         }
 
-        public void setUit_code(String uit_code) {
-            this.uit_code = uit_code;
+        public Duration getRoundTrip() {
+            return roundTrip;
         }
 
-        public String getUitu_code() {
-            return uitu_code;
+        public int getAttempts() {
+            return attempts;
         }
 
-        public void setUitu_code(String uitu_code) {
-            this.uitu_code = uitu_code;
+        public HttpHeaders getHeaders() {
+            return headers;
         }
     }
 
-    private static class CreateDocumentRequest {
-        private String document_format;
-        private String product_document;
-        private String product_group;
-        private String signature;
-        private String type;
+    public static class SubmissionResult {
+        private final Document document;
+        private final CreateDocumentResult result;
+        private final Throwable error;
 
-        // Getters and setters
-        public String getDocument_format() {
-            return document_format;
+        public SubmissionResult(Document document, CreateDocumentResult result, Throwable error) {
+            this.document = document;
+            this.result = result;
+            this.error = error;
+        }
+
+        public Document getDocument() {
+            return document;
         }
 
-        public void setDocument_format(String document_format) {
-            this.document_format = document_format;
+        // null, если отправка не удалась
+        public CreateDocumentResult getResult() {
+            return result;
         }
 
-        public String getProduct_document() {
-            return product_document;
+        public Throwable getError() {
+            return error;
         }
 
-        public void setProduct_document(String product_document) {
-            this.product_document = product_document;
+        public boolean isSuccess() {
+            return error == null;
         }
+    }
 
-        public String getProduct_group() {
-            return product_group;
+    // Финальный статус документа, число опросов и время от track до получения статуса
+    public static class DocumentStatus {
+        private final String documentId;
+        private final String status;
+        private final int polls;
+        private final Duration age;
+
+        public DocumentStatus(String documentId, String status, int polls, Duration age) {
+            this.documentId = documentId;
+            this.status = status;
+            this.polls = polls;
+            this.age = age;
         }
 
-        public void setProduct_group(String product_group) {
-            this.product_group = product_group;
+        public String getDocumentId() {
+            return documentId;
         }
 
-        public String getSignature() {
-            return signature;
+        public String getStatus() {
+            return status;
         }
 
-        public void setSignature(String signature) {
-            this.signature = signature;
+        public int getPolls() {
+            return polls;
         }
 
-        public String getType() {
-            return type;
+        public Duration getAge() {
+            return age;
         }
 
-        public void setType(String type) {
-            this.type = type;
+        public boolean isSuccess() {
+            return "CHECKED_OK".equals(status) || "ACCEPTED".equals(status);
         }
     }
 
@@ -408,4 +4205,23 @@ public class CrptApi {
             super(message, cause);
         }
     }
+
+    // Документ не прошел DocumentValidator; в сообщении первые нарушения, полный список - getViolations()
+    public static class ValidationException extends ApiException {
+        private static final long serialVersionUID = 1L;
+
+        // List.copyOf сериализуем
+        @SuppressWarnings("serial")
+        private final List<String> violations;
+
+        public ValidationException(List<String> violations) {
+            super("Document is invalid (" + violations.size() + " violations): "
+                    + String.join("; ", violations.subList(0, Math.min(violations.size(), 5))));
+            this.violations = List.copyOf(violations);
+        }
+
+        public List<String> getViolations() {
+            return violations;
+        }
+    }
 }
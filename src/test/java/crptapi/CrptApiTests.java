@@ -0,0 +1,1373 @@
+package crptapi;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Stream;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.h2.jdbcx.JdbcDataSource;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class CrptApiTests {
+
+    @Test
+    void slidingWindowAdmitsRequestLimitPerWindow() {
+        CrptApi.RateLimiter limiter = new CrptApi.SlidingWindowRateLimiter(TimeUnit.HOURS, 3);
+
+        for (int i = 0; i < 3; i++) {
+            assertTrue(limiter.reserve() < TimeUnit.SECONDS.toNanos(1));
+        }
+        assertTrue(limiter.reserve() > TimeUnit.MINUTES.toNanos(59));
+    }
+
+    @Test
+    void tryReserveTakesOnlyImmediatePermits() {
+        CrptApi.RateLimiter limiter = new CrptApi.SlidingWindowRateLimiter(TimeUnit.HOURS, 2);
+
+        assertTrue(limiter.tryReserve());
+        assertTrue(limiter.tryReserve());
+        assertFalse(limiter.tryReserve());
+        assertEquals(0, limiter.availablePermits());
+        assertTrue(limiter.reserve() > TimeUnit.MINUTES.toNanos(59));
+    }
+
+    @Test
+    void uncontendedAcquireSkipsQueueAndReleaseAdmitsWaiter() throws Exception {
+        try (CrptApi api = CrptApi.builder(TimeUnit.HOURS, 3).maxConcurrency(1).build()) {
+            api.acquirePermission(CrptApi.Priority.NORMAL);
+            assertEquals(1, api.getInFlightRequests());
+
+            CountDownLatch admitted = new CountDownLatch(1);
+            Thread waiter = new Thread(() -> {
+                try {
+                    api.acquirePermission(CrptApi.Priority.NORMAL);
+                    admitted.countDown();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+            waiter.start();
+            assertFalse(admitted.await(100, TimeUnit.MILLISECONDS));
+
+            api.releasePermission();
+            assertTrue(admitted.await(5, TimeUnit.SECONDS));
+            assertEquals(1, api.getInFlightRequests());
+            api.releasePermission();
+            assertEquals(0, api.getInFlightRequests());
+            assertEquals(1, api.getAvailablePermits());
+        }
+    }
+
+    @Test
+    void slidingWindowKeepsLimitUnderContention() throws InterruptedException {
+        int limit = 100;
+        int threads = 8;
+        CrptApi.RateLimiter limiter = new CrptApi.SlidingWindowRateLimiter(TimeUnit.HOURS, limit);
+        AtomicLongArray delays = new AtomicLongArray(limit * 2);
+        CountDownLatch done = new CountDownLatch(threads);
+
+        for (int t = 0; t < threads; t++) {
+            int offset = t;
+            new Thread(() -> {
+                for (int i = offset; i < limit * 2; i += threads) {
+                    delays.set(i, limiter.reserve());
+                }
+                done.countDown();
+            }).start();
+        }
+        done.await();
+
+        int immediate = 0;
+        for (int i = 0; i < limit * 2; i++) {
+            if (delays.get(i) < TimeUnit.MINUTES.toNanos(1)) {
+                immediate++;
+            } else {
+                assertTrue(delays.get(i) > TimeUnit.MINUTES.toNanos(59));
+            }
+        }
+        assertEquals(limit, immediate);
+    }
+
+    // Два узла с общим хранилищем вместе не превышают лимит, а большинство разрешений выдается из локального запаса
+    @Test
+    void distributedLimitIsSharedBetweenNodes() throws InterruptedException {
+        CrptApi.InMemoryPermitStore inMemory = new CrptApi.InMemoryPermitStore();
+        AtomicInteger storeCalls = new AtomicInteger();
+        CrptApi.PermitStore store = (key, limit, count, holdMillis) -> {
+            storeCalls.incrementAndGet();
+            return inMemory.lease(key, limit, count, holdMillis);
+        };
+        CrptApi.RateLimiter[] nodes = new CrptApi.RateLimiter[2];
+        for (int i = 0; i < nodes.length; i++) {
+            nodes[i] = new CrptApi.DistributedRateLimiter(store, "1234567890", TimeUnit.SECONDS, 20, 5,
+                    Duration.ofMillis(100));
+        }
+        List<Long> sent = new ArrayList<>();
+        long deadline = System.currentTimeMillis() + 2_500;
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        for (int i = 0; i < 8; i++) {
+            CrptApi.RateLimiter node = nodes[i % nodes.length];
+            executor.execute(() -> {
+                try {
+                    while (true) {
+                        node.acquire();
+                        long now = System.currentTimeMillis();
+                        if (now > deadline) {
+                            return;
+                        }
+                        synchronized (sent) {
+                            sent.add(now);
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+        }
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+
+        sent.sort(null);
+        for (int i = 20; i < sent.size(); i++) {
+            assertTrue(sent.get(i) - sent.get(i - 20) >= 990);
+        }
+        assertTrue(sent.size() >= 40);
+        assertTrue(storeCalls.get() * 2 < sent.size());
+    }
+
+    /* JdbcPermitStore на H2: строки ключа создаются при первом обращении, параллельные пачки
+     с нескольких потоков (как с разных узлов) вместе не выдают больше limit слотов за окно
+     */
+    @Test
+    void jdbcPermitStoreSharesSlotsBetweenConnections() throws Exception {
+        JdbcDataSource dataSource = new JdbcDataSource();
+        dataSource.setURL("jdbc:h2:mem:permits;DB_CLOSE_DELAY=-1");
+        try (Connection connection = dataSource.getConnection(); Statement statement = connection.createStatement()) {
+            statement.execute("CREATE TABLE crpt_rate_slots (permit_key VARCHAR(128) NOT NULL, slot INT NOT NULL,"
+                    + " busy_until BIGINT NOT NULL, PRIMARY KEY (permit_key, slot))");
+        }
+        CrptApi.PermitStore store = new CrptApi.JdbcPermitStore(dataSource);
+
+        long start = System.currentTimeMillis();
+        long[] first = store.lease("1234567890", 3, 2, 60_000);
+        long[] second = store.lease("1234567890", 3, 2, 60_000);
+        assertEquals(2, first.length);
+        assertTrue(first[0] - start < 1_000 && first[1] - start < 1_000);
+        assertTrue(second[0] - start < 1_000);
+        assertTrue(second[1] >= first[0] + 60_000);
+
+        int threads = 4;
+        List<Long> starts = new ArrayList<>();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        for (int t = 0; t < threads; t++) {
+            executor.execute(() -> {
+                for (int i = 0; i < 5; i++) {
+                    long[] leased = store.lease("0987654329", 10, 1, 60_000);
+                    synchronized (starts) {
+                        starts.add(leased[0]);
+                    }
+                }
+            });
+        }
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(30, TimeUnit.SECONDS));
+
+        assertEquals(20, starts.size());
+        assertEquals(10, starts.stream().filter(leased -> leased < start + 60_000).count());
+        try (Connection connection = dataSource.getConnection(); Statement statement = connection.createStatement();
+             ResultSet rows = statement.executeQuery("SELECT COUNT(*) FROM crpt_rate_slots")) {
+            assertTrue(rows.next());
+            assertEquals(13, rows.getInt(1));
+        }
+    }
+
+    // Пока один поток ждет медленное хранилище разрешений, очередь допуска не заблокирована для остальных
+    @Test
+    void slowPermitStoreDoesNotBlockAdmissionQueue() throws Exception {
+        CountDownLatch storeEntered = new CountDownLatch(1);
+        CountDownLatch storeReleased = new CountDownLatch(1);
+        CrptApi.InMemoryPermitStore inMemory = new CrptApi.InMemoryPermitStore();
+        CrptApi.PermitStore store = (key, limit, count, holdMillis) -> {
+            storeEntered.countDown();
+            try {
+                storeReleased.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return inMemory.lease(key, limit, count, holdMillis);
+        };
+        try (CrptApi api = CrptApi.builder(TimeUnit.SECONDS, 10)
+                .rateLimiter(new CrptApi.DistributedRateLimiter(store, "1234567890", TimeUnit.SECONDS, 10))
+                .build()) {
+            Thread first = new Thread(() -> {
+                try {
+                    api.acquirePermission(CrptApi.Priority.NORMAL);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+            first.start();
+            assertTrue(storeEntered.await(5, TimeUnit.SECONDS));
+
+            AtomicInteger interrupted = new AtomicInteger();
+            Thread second = new Thread(() -> {
+                try {
+                    api.acquirePermission(CrptApi.Priority.URGENT);
+                } catch (InterruptedException e) {
+                    interrupted.incrementAndGet();
+                }
+            });
+            second.start();
+            Thread.sleep(50);
+            second.interrupt();
+            second.join(1_000);
+            assertFalse(second.isAlive());
+            assertEquals(1, interrupted.get());
+
+            storeReleased.countDown();
+            first.join(5_000);
+            assertFalse(first.isAlive());
+            assertEquals(1, api.getInFlightRequests());
+        }
+    }
+
+    /* Ожидающий вызывающий держит сериализованное тело (буфер пула 16 KB), стек виртуального потока
+     и запрос; замерено около 40 KB
+     */
+    private static final long MAX_HEAP_PER_WAITING_CALLER = 64 * 1024;
+
+    /* Клиент в режиме VIRTUAL_THREADS, 10k вызывающих createDocument на виртуальных потоках при лимите 5000 в секунду:
+     половина ждет следующего окна, припарковавшись. Платформенных потоков добавляется не больше, чем потоков-носителей,
+     а живая куча растет не больше чем на MAX_HEAP_PER_WAITING_CALLER на ждущего вызывающего
+     Собирается и запускается под Java 21: mvn -Pjava21 test
+     */
+    @Test
+    @Tag("java21")
+    void virtualThreadCallersWaitWithoutPlatformThreads() throws Exception {
+        int callers = 10_000;
+        List<Long> arrivals = new ArrayList<>();
+        ExecutorService serverExecutor = CrptApi.newVirtualThreadExecutor();
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), callers);
+        server.createContext("/api/v3/lk/documents/create", exchange -> {
+            synchronized (arrivals) {
+                arrivals.add(System.nanoTime());
+            }
+            exchange.getRequestBody().readAllBytes();
+            respond(exchange, 200, "{\"value\":\"doc-uuid\"}");
+        });
+        server.setExecutor(serverExecutor);
+        server.start();
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        memory.gc();
+        int threadsBefore = threads.getThreadCount();
+        long heapBefore = memory.getHeapMemoryUsage().getUsed();
+        int peakThreads = threadsBefore;
+        long heapDuring = heapBefore;
+        AtomicInteger created = new AtomicInteger();
+        AtomicInteger failed = new AtomicInteger();
+        ExecutorService callerExecutor = CrptApi.newVirtualThreadExecutor();
+        try (CrptApi api = CrptApi.builder(TimeUnit.SECONDS, callers / 2)
+                .baseUri(baseUri(server))
+                .executionMode(CrptApi.ExecutionMode.VIRTUAL_THREADS)
+                .maxConcurrency(64)
+                .build()) {
+            for (int i = 0; i < callers; i++) {
+                callerExecutor.execute(() -> {
+                    try {
+                        if ("doc-uuid".equals(api.createDocument(sampleDocument(1), "sig").getDocumentId())) {
+                            created.incrementAndGet();
+                        }
+                    } catch (Exception e) {
+                        failed.incrementAndGet();
+                    }
+                });
+            }
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(60);
+            while (created.get() + failed.get() < callers && System.nanoTime() < deadline) {
+                peakThreads = Math.max(peakThreads, threads.getThreadCount());
+                // Живая куча, пока вторая половина ждет: сборка перед замером убирает мусор отправленных запросов
+                if (heapDuring == heapBefore && created.get() >= callers / 2) {
+                    memory.gc();
+                    heapDuring = memory.getHeapMemoryUsage().getUsed();
+                }
+                Thread.sleep(10);
+            }
+            callerExecutor.shutdown();
+            assertTrue(callerExecutor.awaitTermination(10, TimeUnit.SECONDS));
+            assertEquals(0, api.getInFlightRequests());
+        } finally {
+            server.stop(0);
+            serverExecutor.shutdown();
+        }
+
+        assertEquals(0, failed.get());
+        assertEquals(callers, created.get());
+        assertEquals(callers, arrivals.size());
+        // Вторая половина уходит не раньше следующего окна
+        List<Long> sorted = new ArrayList<>(arrivals);
+        sorted.sort(null);
+        assertTrue(sorted.get(callers / 2) - sorted.get(0) >= TimeUnit.MILLISECONDS.toNanos(950));
+        assertTrue(peakThreads - threadsBefore <= Runtime.getRuntime().availableProcessors() + 8,
+                "platform threads " + threadsBefore + " -> " + peakThreads);
+        assertTrue(heapDuring - heapBefore <= (long) (callers / 2) * MAX_HEAP_PER_WAITING_CALLER,
+                "heap used " + heapBefore / 1024 + " KB -> " + heapDuring / 1024 + " KB");
+    }
+
+    @Test
+    void requestBodyMatchesDoubleEncoding() throws IOException {
+        ObjectMapper mapper = new ObjectMapper().setSerializationInclusion(JsonInclude.Include.NON_NULL);
+        CrptApi.Document document = sampleDocument(3);
+        document.setDescription("x".repeat(CrptApi.BufferPool.BUFFER_SIZE) + "Кавычки \" и \\ слэши, \n\t управляющие \u0001 и / символы");
+        String signature = "sig\"nature";
+
+        Map<String, Object> request = new LinkedHashMap<>();
+        request.put("document_format", "MANUAL");
+        request.put("product_document", mapper.writeValueAsString(document));
+        request.put("signature", signature);
+        request.put("type", "LP_INTRODUCE_GOODS");
+
+        try (CrptApi api = new CrptApi(TimeUnit.SECONDS, 1)) {
+            CrptApi.RequestBody body = api.buildRequestBody(document, signature);
+            assertEquals(mapper.writeValueAsString(request), new String(body.toByteArray(), StandardCharsets.UTF_8));
+            body.recycle();
+        }
+    }
+
+    /* Публикатор отдает сами буферы пула read-only срезами. Пока подписка не завершена, recycle не возвращает
+     их в пул: следующее тело из того же пула не перезаписывает байты, которые HttpClient еще не отправил
+     */
+    @Test
+    void requestBodyPublishesPooledBuffersUntilSubscriptionEnds() {
+        CrptApi.BufferPool pool = new CrptApi.BufferPool(8);
+        byte[] content = new byte[CrptApi.BufferPool.BUFFER_SIZE * 2 + 100];
+        Arrays.fill(content, (byte) 'a');
+        CrptApi.RequestBody body = new CrptApi.RequestBody(pool);
+        body.write(content, 0, content.length);
+
+        List<ByteBuffer> received = new ArrayList<>();
+        AtomicInteger completed = new AtomicInteger();
+        AtomicReference<Flow.Subscription> subscription = new AtomicReference<>();
+        HttpRequest.BodyPublisher publisher = body.publisher();
+        assertEquals(content.length, publisher.contentLength());
+        publisher.subscribe(new Flow.Subscriber<ByteBuffer>() {
+            @Override
+            public void onSubscribe(Flow.Subscription s) {
+                subscription.set(s);
+            }
+
+            @Override
+            public void onNext(ByteBuffer item) {
+                received.add(item);
+            }
+
+            @Override
+            public void onError(Throwable throwable) {
+            }
+
+            @Override
+            public void onComplete() {
+                completed.incrementAndGet();
+            }
+        });
+        subscription.get().request(1);
+        assertEquals(1, received.size());
+        assertTrue(received.get(0).isReadOnly());
+
+        body.recycle();
+        CrptApi.RequestBody next = new CrptApi.RequestBody(pool);
+        byte[] other = new byte[content.length];
+        Arrays.fill(other, (byte) 'z');
+        next.write(other, 0, other.length);
+
+        subscription.get().request(Long.MAX_VALUE);
+        assertEquals(3, received.size());
+        assertEquals(1, completed.get());
+        ByteBuffer sent = ByteBuffer.allocate(content.length);
+        received.forEach(sent::put);
+        assertTrue(Arrays.equals(content, sent.array()));
+        next.recycle();
+    }
+
+    @Test
+    void concurrentCallersShareOneTokenRequest() throws IOException {
+        AtomicInteger keyRequests = new AtomicInteger();
+        HttpServer server = authServer(keyRequests, 200);
+        try {
+            CrptApi.AuthTokenProvider provider = new CrptApi.CertificateAuthTokenProvider(HttpClient.newHttpClient(),
+                    baseUri(server), CrptApiTests::sign);
+
+            List<CompletableFuture<String>> tokens = new ArrayList<>();
+            for (int i = 0; i < 16; i++) {
+                tokens.add(CompletableFuture.supplyAsync(() -> provider.token().join()));
+            }
+            for (CompletableFuture<String> token : tokens) {
+                assertEquals("token-1", token.join());
+            }
+            assertEquals(1, keyRequests.get());
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    @Test
+    void tokenIsRefreshedInBackgroundBeforeExpiry() throws IOException, InterruptedException {
+        AtomicInteger keyRequests = new AtomicInteger();
+        HttpServer server = authServer(keyRequests, 0);
+        try {
+            CrptApi.AuthTokenProvider provider = new CrptApi.CertificateAuthTokenProvider(HttpClient.newHttpClient(),
+                    baseUri(server), CrptApiTests::sign, Duration.ofSeconds(30), Duration.ofMillis(29_900));
+            assertEquals("token-1", provider.token().join());
+
+            Thread.sleep(200);
+            CompletableFuture<String> stale = provider.token();
+            assertTrue(stale.isDone());
+            assertEquals("token-1", stale.join());
+
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            while (!"token-2".equals(provider.token().join()) && System.nanoTime() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals("token-2", provider.token().join());
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    // Сервер авторизации не отвечает: обновление должно завершиться по таймауту, а следующий вызов - начать новое
+    @Test
+    void hangingAuthServerTimesOutTokenRequest() throws Exception {
+        AtomicInteger keyRequests = new AtomicInteger();
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/api/v3/auth/cert/key", exchange -> {
+            keyRequests.incrementAndGet();
+            try {
+                Thread.sleep(10_000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.start();
+        try {
+            CrptApi.AuthTokenProvider provider = new CrptApi.CertificateAuthTokenProvider(HttpClient.newHttpClient(),
+                    baseUri(server), CrptApiTests::sign, Duration.ofHours(10), Duration.ofHours(1),
+                    Duration.ofMillis(200));
+            for (int i = 1; i <= 2; i++) {
+                ExecutionException error = assertThrows(ExecutionException.class,
+                        () -> provider.token().get(3, TimeUnit.SECONDS));
+                assertTrue(error.getCause() instanceof HttpTimeoutException);
+                assertEquals(i, keyRequests.get());
+            }
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    @Test
+    void createsDocumentAgainstConfiguredEndpoint() throws Exception {
+        List<String> requests = new ArrayList<>();
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/api/v3/lk/documents/create", exchange -> {
+            synchronized (requests) {
+                requests.add(exchange.getRequestURI().getQuery() + " "
+                        + exchange.getRequestHeaders().getFirst("Authorization") + " "
+                        + new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8));
+            }
+            respond(exchange, 200, "{\"value\":\"doc-uuid\"}");
+        });
+        server.start();
+        try {
+            CrptApi.HistogramMetrics metrics = new CrptApi.HistogramMetrics();
+            try (CrptApi api = CrptApi.builder(TimeUnit.SECONDS, 10)
+                    .baseUri(baseUri(server))
+                    .authTokenProvider(CrptApi.AuthTokenProvider.fixed("secret"))
+                    .metrics(metrics)
+                    .build()) {
+                CrptApi.CreateDocumentResult created = api.createDocument(sampleDocument(1), "sig");
+                CrptApi.CreateDocumentResult createdAsync =
+                        api.createDocumentAsync(sampleDocument(2), "sig").get(5, TimeUnit.SECONDS);
+                List<CrptApi.SubmissionResult> results = api.submitAll(
+                        List.of(sampleDocument(1), sampleDocument(3)), document -> "sig");
+
+                assertEquals("doc-uuid", created.getDocumentId());
+                assertEquals(200, created.getStatusCode());
+                assertEquals(1, created.getAttempts());
+                assertEquals("doc-uuid", createdAsync.getDocumentId());
+                assertTrue(results.stream().allMatch(CrptApi.SubmissionResult::isSuccess));
+                assertEquals("doc-uuid", results.get(1).getResult().getDocumentId());
+                assertEquals(4, requests.size());
+                assertEquals(4, metrics.getStatusCount(200));
+                assertEquals(4, metrics.getSerialization().getCount());
+                assertEquals(0, api.getInFlightRequests());
+                assertTrue(requests.get(0).startsWith("pg=clothes Bearer secret {\"document_format\":\"MANUAL\""));
+            }
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    @Test
+    void closeStopsOwnedThreads() throws Exception {
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", exchange -> {
+            exchange.sendResponseHeaders(200, -1);
+            exchange.close();
+        });
+        server.createContext("/api/v3/lk/documents/create", exchange -> respond(exchange, 200, "{}"));
+        server.start();
+        try {
+            CrptApi api = CrptApi.builder(TimeUnit.SECONDS, 100)
+                    .baseUri(baseUri(server))
+                    .keepAlive(Duration.ofMillis(10))
+                    .documentSigner((content, offset, length) -> "sig", 2)
+                    .build();
+            api.createDocument(sampleDocument(1));
+            assertTrue(clientThreads() > 0);
+
+            api.close();
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            while (clientThreads() > 0 && System.nanoTime() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(0, clientThreads());
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    private static long clientThreads() {
+        return Thread.getAllStackTraces().keySet().stream()
+                .filter(thread -> thread.getName().startsWith("crpt-api-admission")
+                        || thread.getName().startsWith("crpt-api-signer"))
+                .count();
+    }
+
+    @Test
+    void requestBuildingErrorFailsFutureAndReleasesSlot() throws Exception {
+        List<String> queries = new ArrayList<>();
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/api/v3/lk/documents/create", exchange -> {
+            synchronized (queries) {
+                queries.add(exchange.getRequestURI().getRawQuery());
+            }
+            respond(exchange, 200, "{}");
+        });
+        server.start();
+        try (CrptApi broken = CrptApi.builder(TimeUnit.SECONDS, 10)
+                .baseUri(baseUri(server))
+                .authTokenProvider(CrptApi.AuthTokenProvider.fixed("bad\ntoken"))
+                .maxConcurrency(1)
+                .build();
+             CrptApi api = CrptApi.builder(TimeUnit.SECONDS, 10)
+                     .baseUri(baseUri(server))
+                     .validateDocuments(false)
+                     .build()) {
+            ExecutionException error = assertThrows(ExecutionException.class,
+                    () -> broken.createDocumentAsync(sampleDocument(1), "sig").get(3, TimeUnit.SECONDS));
+            assertTrue(error.getCause() instanceof CrptApi.ApiException);
+            assertEquals(0, broken.getInFlightRequests());
+
+            CrptApi.Document document = sampleDocument(1);
+            document.setProductGroup("a b&c");
+            api.createDocumentAsync(document, "sig").get(3, TimeUnit.SECONDS);
+            assertEquals(List.of("pg=a+b%26c"), queries);
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    @Test
+    void requestTimeoutReleasesPermit() throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/api/v3/lk/documents/create", exchange -> {
+            try {
+                Thread.sleep(2_000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            respond(exchange, 200, "{}");
+        });
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.start();
+        try (CrptApi api = CrptApi.builder(TimeUnit.SECONDS, 1)
+                .baseUri(baseUri(server))
+                .requestTimeout(Duration.ofMillis(200))
+                .build()) {
+            for (int i = 0; i < 2; i++) {
+                CrptApi.ApiException error = assertThrows(CrptApi.ApiException.class,
+                        () -> api.createDocument(sampleDocument(1), "sig"));
+                assertTrue(error.getCause() instanceof HttpTimeoutException);
+            }
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    @Test
+    void adaptiveLimitHalvesOnThrottlingAndRecoversOnSuccess() {
+        CrptApi.AdaptiveRateLimiter limiter = new CrptApi.AdaptiveRateLimiter(TimeUnit.SECONDS, 20);
+
+        limiter.onResponse(429, -1);
+        assertEquals(10, limiter.getEffectiveLimit());
+        limiter.onResponse(503, -1);
+        assertEquals(10, limiter.getEffectiveLimit());
+        for (int i = 0; i < 11; i++) {
+            limiter.onResponse(200, -1);
+        }
+        assertEquals(11, limiter.getEffectiveLimit());
+
+        for (int i = 0; i < 11; i++) {
+            assertEquals(0, limiter.reserve());
+        }
+        assertTrue(limiter.reserve() > TimeUnit.MILLISECONDS.toNanos(900));
+    }
+
+    @Test
+    void retryAfterPausesAdmission() throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/api/v3/lk/documents/create", exchange -> {
+            exchange.getResponseHeaders().set("Retry-After", "2");
+            respond(exchange, 429, "{}");
+        });
+        server.start();
+        try {
+            CrptApi.AdaptiveRateLimiter limiter = new CrptApi.AdaptiveRateLimiter(TimeUnit.SECONDS, 100);
+            try (CrptApi api = CrptApi.builder(TimeUnit.SECONDS, 100)
+                    .baseUri(baseUri(server))
+                    .rateLimiter(limiter)
+                    .build()) {
+                assertThrows(CrptApi.ApiException.class, () -> api.createDocument(sampleDocument(1), "sig"));
+                assertEquals(50, limiter.getEffectiveLimit());
+                assertEquals(0, api.getAvailablePermits());
+                assertTrue(limiter.reserve() > TimeUnit.MILLISECONDS.toNanos(1_500));
+            }
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    @Test
+    void retriesSafeFailuresWithFreshPermit() throws Exception {
+        AtomicInteger requests = new AtomicInteger();
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/api/v3/lk/documents/create", exchange -> {
+            int n = requests.incrementAndGet();
+            exchange.getRequestBody().readAllBytes();
+            if (n == 4) {
+                respond(exchange, 500, "{}");
+            } else {
+                respond(exchange, n % 3 == 0 ? 200 : 503, "{}");
+            }
+        });
+        server.start();
+        try {
+            CrptApi.HistogramMetrics metrics = new CrptApi.HistogramMetrics();
+            try (CrptApi api = CrptApi.builder(TimeUnit.SECONDS, 100)
+                    .baseUri(baseUri(server))
+                    .retryPolicy(new CrptApi.RetryPolicy(3, Duration.ofMillis(10), Duration.ofMillis(50)))
+                    .metrics(metrics)
+                    .build()) {
+                api.createDocument(sampleDocument(1), "sig");
+                assertEquals(3, requests.get());
+                assertEquals(3, metrics.getPermitWait().getCount());
+
+                // 500 неоднозначен: документ мог быть создан, поэтому без withAmbiguousRetries не повторяется
+                CompletableFuture<CrptApi.CreateDocumentResult> future = api.createDocumentAsync(sampleDocument(1), "sig");
+                ExecutionException error = assertThrows(ExecutionException.class, future::get);
+                assertTrue(error.getCause() instanceof CrptApi.ApiException);
+                assertEquals(4, requests.get());
+            }
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    @Test
+    void retryBudgetLimitsRetryStorm() throws IOException, InterruptedException {
+        AtomicInteger requests = new AtomicInteger();
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/api/v3/lk/documents/create", exchange -> {
+            requests.incrementAndGet();
+            exchange.getRequestBody().readAllBytes();
+            respond(exchange, 503, "{}");
+        });
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.start();
+        try (CrptApi api = CrptApi.builder(TimeUnit.SECONDS, 100)
+                .baseUri(baseUri(server))
+                .retryPolicy(new CrptApi.RetryPolicy(5, Duration.ofMillis(1), Duration.ofMillis(5)))
+                .build()) {
+            List<CrptApi.Document> documents = new ArrayList<>();
+            for (int i = 0; i < 20; i++) {
+                documents.add(sampleDocument(1));
+            }
+
+            List<CrptApi.SubmissionResult> results = api.submitAll(documents, document -> "sig");
+
+            assertTrue(results.stream().noneMatch(CrptApi.SubmissionResult::isSuccess));
+            // 20 первых попыток и не больше 10 + 20 * 0.1 повторов вместо 80
+            assertTrue(requests.get() <= 32);
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    // 200 BULK при лимите 20 в секунду - это 10 секунд очереди; URGENT не должен стоять за ней
+    @Test
+    void urgentDocumentsOvertakeSaturatedBulkLane() throws Exception {
+        AtomicInteger requests = new AtomicInteger();
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/api/v3/lk/documents/create", exchange -> {
+            requests.incrementAndGet();
+            exchange.getRequestBody().readAllBytes();
+            respond(exchange, 200, "{}");
+        });
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.start();
+        try (CrptApi api = CrptApi.builder(TimeUnit.SECONDS, 20).baseUri(baseUri(server)).build()) {
+            for (int i = 0; i < 200; i++) {
+                api.createDocumentAsync(sampleDocument(1), "sig", CrptApi.Priority.BULK);
+            }
+            Thread.sleep(200);
+
+            long start = System.nanoTime();
+            List<CompletableFuture<CrptApi.CreateDocumentResult>> urgent = new ArrayList<>();
+            for (int i = 0; i < 3; i++) {
+                urgent.add(api.createDocumentAsync(sampleDocument(1), "sig", CrptApi.Priority.URGENT));
+            }
+            api.createDocument(sampleDocument(1), "sig", CrptApi.Priority.URGENT);
+            CompletableFuture.allOf(urgent.toArray(new CompletableFuture[0])).get(5, TimeUnit.SECONDS);
+
+            assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(1_500));
+            assertTrue(requests.get() < 60);
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    @Test
+    void duplicateDocumentsShareOneSubmission() throws Exception {
+        AtomicInteger requests = new AtomicInteger();
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/api/v3/lk/documents/create", exchange -> {
+            requests.incrementAndGet();
+            exchange.getRequestBody().readAllBytes();
+            try {
+                Thread.sleep(300);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            respond(exchange, 200, "{}");
+        });
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.start();
+        try (CrptApi api = CrptApi.builder(TimeUnit.SECONDS, 100)
+                .baseUri(baseUri(server))
+                .deduplicate(Duration.ofMinutes(1), 1_000)
+                .build()) {
+            List<CompletableFuture<CrptApi.CreateDocumentResult>> copies = new ArrayList<>();
+            for (int i = 0; i < 5; i++) {
+                copies.add(api.createDocumentAsync(sampleDocument(2), "sig" + i));
+            }
+            api.createDocument(sampleDocument(2), "sig");
+            CompletableFuture.allOf(copies.toArray(new CompletableFuture[0])).get(5, TimeUnit.SECONDS);
+            assertEquals(1, requests.get());
+
+            api.createDocument(sampleDocument(2), "sig");
+            assertEquals(1, requests.get());
+
+            CrptApi.Document changed = sampleDocument(2);
+            changed.setDescription("Changed");
+            api.createDocument(changed, "sig");
+            assertEquals(2, requests.get());
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    /* Подпись 100 мс на 4 потоках: 8 документов подписываются двумя волнами, и первые запросы уходят,
+     пока вторая волна еще подписывается. Подписаны ровно те байты, что пришли в product_document
+     */
+    @Test
+    void documentsAreSignedInPipelineOverSentBytes() throws Exception {
+        Map<String, String> bodies = new ConcurrentHashMap<>();
+        AtomicLong firstArrival = new AtomicLong();
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/api/v3/lk/documents/create", exchange -> {
+            firstArrival.compareAndSet(0, System.nanoTime());
+            String body = new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
+            bodies.put(new ObjectMapper().readTree(body).get("signature").asText(), body);
+            respond(exchange, 200, "{\"value\":\"doc-uuid\"}");
+        });
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.start();
+
+        Map<String, byte[]> signed = new ConcurrentHashMap<>();
+        AtomicInteger signing = new AtomicInteger();
+        AtomicInteger maxSigning = new AtomicInteger();
+        AtomicLong lastSignEnd = new AtomicLong();
+        CrptApi.DocumentSigner signer = (content, offset, length) -> {
+            maxSigning.accumulateAndGet(signing.incrementAndGet(), Math::max);
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            byte[] bytes = Arrays.copyOfRange(content, offset, offset + length);
+            String signature = "sig-" + Arrays.hashCode(bytes);
+            signed.put(signature, bytes);
+            signing.decrementAndGet();
+            lastSignEnd.accumulateAndGet(System.nanoTime(), Math::max);
+            return signature;
+        };
+        try (CrptApi api = CrptApi.builder(TimeUnit.SECONDS, 100)
+                .baseUri(baseUri(server))
+                .documentSigner(signer, 4)
+                .build()) {
+            List<CrptApi.Document> documents = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                CrptApi.Document document = sampleDocument(2);
+                document.setDoc_id("doc-" + i);
+                document.setDescription("Кавычки \" и \\ в описании " + i);
+                documents.add(document);
+            }
+
+            List<CrptApi.SubmissionResult> results = api.submitAll(documents);
+            assertTrue(results.stream().allMatch(CrptApi.SubmissionResult::isSuccess));
+            assertEquals(4, maxSigning.get());
+            assertTrue(firstArrival.get() < lastSignEnd.get());
+            assertEquals(8, bodies.size());
+            for (Map.Entry<String, String> body : bodies.entrySet()) {
+                String productDocument = new ObjectMapper().readTree(body.getValue()).get("product_document").asText();
+                assertEquals(new String(signed.get(body.getKey()), StandardCharsets.UTF_8), productDocument);
+            }
+
+            CrptApi.Document document = documents.get(0);
+            byte[] json = new ObjectMapper().writeValueAsBytes(document);
+            String signature = signer.sign(json, 0, json.length);
+            CrptApi.RequestBody body = api.buildRequestBody(document, signature);
+            assertEquals(new String(body.toByteArray(), StandardCharsets.UTF_8), bodies.get(signature));
+            body.recycle();
+            assertEquals("doc-uuid", api.createDocumentAsync(document).get(5, TimeUnit.SECONDS).getDocumentId());
+
+            CrptApi.DocumentSigner adapted = CrptApi.DocumentSigner.of(data -> new String(data, StandardCharsets.UTF_8));
+            assertEquals("document", adapted.sign("[{document}]".getBytes(StandardCharsets.UTF_8), 2, 8));
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    @Test
+    void markingCodeFieldsAreParsedInPlace() {
+        CrptApi.MarkingCode code = new CrptApi.MarkingCode();
+        assertTrue(code.parse("]d2010460043993125621JgXJ5.T\u001d91EE06\u001d92dGVzdA=="));
+        assertEquals("04600439931256", code.getGtin().toString());
+        assertEquals(4600439931256L, code.getGtin().toLong());
+        assertTrue(code.getGtin().isCheckDigitValid());
+        assertTrue(code.getSerial().contentEquals("JgXJ5.T"));
+        assertEquals("EE06", code.getCryptoKey().toString());
+        assertEquals("dGVzdA==", code.getCryptoCode().toString());
+        assertFalse(code.getSscc().isPresent());
+
+        byte[] milk = "\u001d0104607009780146215Nh0+u\u001d93dGVz".getBytes(StandardCharsets.US_ASCII);
+        assertTrue(code.parse(milk, 0, milk.length));
+        assertEquals("04607009780146", code.getGtin().toString());
+        assertEquals("5Nh0+u", code.getSerial().toString());
+        assertEquals("dGVz", code.getCryptoCode().toString());
+        assertFalse(code.getCryptoKey().isPresent());
+
+        assertTrue(code.parse("00046070097800000019"));
+        assertEquals("046070097800000019", code.getSscc().toString());
+        assertFalse(code.getGtin().isPresent());
+
+        assertFalse(code.parse("0104600439931"));
+        assertFalse(code.parse("01046004399312AB21abc"));
+        assertFalse(code.parse("99abc"));
+        assertFalse(code.parse("0104600439931256210123456789012345678901"));
+
+        String uit = "010460043993125621JgXJ5.T\u001d91EE06\u001d92dGVzdA==";
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long allocatedBefore = threads.getCurrentThreadAllocatedBytes();
+        long checksum = 0;
+        for (int i = 0; i < 100_000; i++) {
+            code.parse(uit);
+            checksum += code.getGtin().toLong() + code.getSerial().length();
+        }
+        assertTrue(threads.getCurrentThreadAllocatedBytes() - allocatedBefore < 1_000);
+        assertEquals(100_000L * (4600439931256L + 7), checksum);
+    }
+
+    @Test
+    void invalidDocumentIsRejectedBeforeAdmission() throws Exception {
+        AtomicInteger requests = new AtomicInteger();
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/api/v3/lk/documents/create", exchange -> {
+            requests.incrementAndGet();
+            respond(exchange, 200, "{}");
+        });
+        server.start();
+        try (CrptApi api = CrptApi.builder(TimeUnit.SECONDS, 1).baseUri(baseUri(server)).build()) {
+            CrptApi.Document document = sampleDocument(3);
+            document.setParticipant_inn("0987654321");
+            document.setProduction_date("2023-02-29");
+            document.getProducts()[2].setTnved_code("620342000");
+            document.getProducts()[2].setOwner_inn("500100732259");
+
+            CrptApi.ValidationException error = assertThrows(CrptApi.ValidationException.class,
+                    () -> api.createDocument(document, "sig"));
+            assertEquals(List.of(
+                    "participant_inn: invalid INN 0987654321",
+                    "production_date: must be a date in yyyy-MM-dd format, got 2023-02-29",
+                    "products[2].tnved_code: must be 10 digits, got 620342000"), error.getViolations());
+            assertEquals(0, requests.get());
+            assertEquals(1, api.getAvailablePermits());
+
+            CrptApi.Document large = sampleDocument(50_000);
+            large.getProducts()[1].setProduction_date("2024-13-01");
+            large.getProducts()[40_000].setProducer_inn("12345");
+            assertEquals(List.of(
+                    "products[1].production_date: must be a date in yyyy-MM-dd format, got 2024-13-01",
+                    "products[40000].producer_inn: invalid INN 12345"), CrptApi.DocumentValidator.check(large));
+
+            CrptApi.Document valid = sampleDocument(100);
+            com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+            long allocatedBefore = threads.getCurrentThreadAllocatedBytes();
+            for (int i = 0; i < 1_000; i++) {
+                CrptApi.DocumentValidator.validate(valid);
+            }
+            assertTrue(threads.getCurrentThreadAllocatedBytes() - allocatedBefore < 1_000);
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    /* doc-1 дважды в обработке, затем принят; doc-2 не бывает финальным и упирается в таймаут;
+     doc-3 не найден навсегда. Повторный track doc-1 не добавляет опросов
+     */
+    @Test
+    void statusTrackerPollsUntilFinalStatus() throws Exception {
+        Map<String, AtomicInteger> polls = new ConcurrentHashMap<>();
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/api/v4/true-api/doc/", exchange -> {
+            String id = exchange.getRequestURI().getPath().split("/")[5];
+            int poll = polls.computeIfAbsent(id, key -> new AtomicInteger()).incrementAndGet();
+            if (id.equals("doc-3")) {
+                respond(exchange, 403, "{}");
+                return;
+            }
+            String status = id.equals("doc-1") && poll >= 3 ? "CHECKED_OK" : "IN_PROGRESS";
+            respond(exchange, 200, "[{\"number\":\"" + id + "\",\"status\":\"" + status + "\"}]");
+        });
+        server.start();
+        try (CrptApi api = CrptApi.builder(TimeUnit.SECONDS, 100).baseUri(baseUri(server)).build();
+             CrptApi.StatusTracker tracker = api.openStatusTracker(
+                     Duration.ofMillis(20), Duration.ofMillis(50), Duration.ofMillis(500))) {
+            CompletableFuture<CrptApi.DocumentStatus> first = tracker.track("doc-1");
+            CompletableFuture<CrptApi.DocumentStatus> second = tracker.track("doc-1");
+            CompletableFuture<CrptApi.DocumentStatus> stuck = tracker.track("doc-2");
+            CompletableFuture<CrptApi.DocumentStatus> forbidden = tracker.track("doc-3");
+
+            CrptApi.DocumentStatus status = first.get(5, TimeUnit.SECONDS);
+            assertEquals("CHECKED_OK", status.getStatus());
+            assertTrue(status.isSuccess());
+            assertEquals(3, status.getPolls());
+            assertEquals(3, second.get(5, TimeUnit.SECONDS).getPolls());
+            assertEquals(3, polls.get("doc-1").get());
+
+            ExecutionException timeout = assertThrows(ExecutionException.class, () -> stuck.get(5, TimeUnit.SECONDS));
+            assertTrue(timeout.getCause().getMessage().contains("IN_PROGRESS"));
+            assertThrows(ExecutionException.class, () -> forbidden.get(5, TimeUnit.SECONDS));
+            assertEquals(1, polls.get("doc-3").get());
+            assertEquals(0, tracker.getTrackedCount());
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    /* Ответ идет 1.5 с при окне в 1 с: если бы слот держался до ответа и их было requestLimit,
+     вторая десятка ушла бы только через 1.5 с. Отправки должны идти в темпе лимита: 0, 1 и 2 с
+     */
+    @Test
+    void fullRateIsReachedWhenLatencyExceedsWindow() throws IOException, InterruptedException {
+        List<Long> arrivals = new ArrayList<>();
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/api/v3/lk/documents/create", exchange -> {
+            synchronized (arrivals) {
+                arrivals.add(System.nanoTime());
+            }
+            exchange.getRequestBody().readAllBytes();
+            try {
+                Thread.sleep(1_500);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            respond(exchange, 200, "{}");
+        });
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.start();
+        try (CrptApi api = CrptApi.builder(TimeUnit.SECONDS, 10)
+                .baseUri(baseUri(server))
+                .build()) {
+            List<CrptApi.Document> documents = new ArrayList<>();
+            for (int i = 0; i < 30; i++) {
+                documents.add(sampleDocument(1));
+            }
+
+            List<CrptApi.SubmissionResult> results = api.submitAll(documents, document -> "sig");
+
+            assertTrue(results.stream().allMatch(CrptApi.SubmissionResult::isSuccess));
+            assertEquals(30, arrivals.size());
+            arrivals.sort(null);
+            long first = arrivals.get(0);
+            assertTrue(arrivals.get(10) - first >= TimeUnit.MILLISECONDS.toNanos(900));
+            assertTrue(arrivals.get(29) - first < TimeUnit.MILLISECONDS.toNanos(2_400));
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    /* Первый ответ идет 1.5 с при maxConcurrency(1): пока слот занят, разрешения лимитера не должны
+     копиться и потом уходить пачкой. В любом окне в 1 с - не больше 5 запросов
+     */
+    @Test
+    void rateLimitHoldsWhileConcurrencyIsTheBindingLimit() throws Exception {
+        List<Long> arrivals = new ArrayList<>();
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/api/v3/lk/documents/create", exchange -> {
+            boolean first;
+            synchronized (arrivals) {
+                arrivals.add(System.nanoTime());
+                first = arrivals.size() == 1;
+            }
+            exchange.getRequestBody().readAllBytes();
+            if (first) {
+                try {
+                    Thread.sleep(1_500);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            respond(exchange, 200, "{}");
+        });
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.start();
+        try (CrptApi api = CrptApi.builder(TimeUnit.SECONDS, 5)
+                .baseUri(baseUri(server))
+                .maxConcurrency(1)
+                .build()) {
+            List<CompletableFuture<CrptApi.CreateDocumentResult>> futures = new ArrayList<>();
+            for (int i = 0; i < 12; i++) {
+                futures.add(api.createDocumentAsync(sampleDocument(1), "sig"));
+            }
+            api.createDocument(sampleDocument(1), "sig", CrptApi.Priority.URGENT);
+            CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).get(10, TimeUnit.SECONDS);
+
+            assertEquals(13, arrivals.size());
+            arrivals.sort(null);
+            for (int i = 0; i + 5 < arrivals.size(); i++) {
+                assertTrue(arrivals.get(i + 5) - arrivals.get(i) >= TimeUnit.MILLISECONDS.toNanos(950),
+                        "6 requests within " + (arrivals.get(i + 5) - arrivals.get(i)) / 1_000_000 + " ms");
+            }
+            assertEquals(0, api.getInFlightRequests());
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    /* Первый клиент успевает отправить один документ из пяти (лимит 1 в час) и закрывается.
+     Второй на том же каталоге должен отправить оставшиеся четыре
+     */
+    @Test
+    void outboxReplaysPendingDocumentsAfterRestart() throws Exception {
+        AtomicInteger requests = new AtomicInteger();
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/api/v3/lk/documents/create", exchange -> {
+            requests.incrementAndGet();
+            exchange.getRequestBody().readAllBytes();
+            respond(exchange, 200, "{}");
+        });
+        server.start();
+        Path directory = Files.createTempDirectory("outbox");
+        try {
+            CountDownLatch first = new CountDownLatch(1);
+            try (CrptApi throttled = CrptApi.builder(TimeUnit.HOURS, 1).baseUri(baseUri(server)).build();
+                 CrptApi.Outbox outbox = throttled.openOutbox(directory, result -> first.countDown())) {
+                for (int i = 0; i < 5; i++) {
+                    outbox.enqueue(sampleDocument(1), "sig" + i);
+                }
+                assertTrue(first.await(5, TimeUnit.SECONDS));
+            }
+            assertEquals(1, requests.get());
+
+            CountDownLatch rest = new CountDownLatch(4);
+            try (CrptApi api = CrptApi.builder(TimeUnit.SECONDS, 100).baseUri(baseUri(server)).build();
+                 CrptApi.Outbox outbox = api.openOutbox(directory, result -> {
+                     assertTrue(result.isSuccess());
+                     assertEquals("test_doc_123", result.getDocument().getDoc_id());
+                     rest.countDown();
+                 })) {
+                assertTrue(rest.await(5, TimeUnit.SECONDS));
+                assertEquals(5, requests.get());
+                assertEquals(0, outbox.getPendingCount());
+            }
+        } finally {
+            server.stop(0);
+            try (Stream<Path> files = Files.list(directory)) {
+                for (Path file : (Iterable<Path>) files::iterator) {
+                    Files.delete(file);
+                }
+            }
+            Files.delete(directory);
+        }
+    }
+
+    @Test
+    void productGroupResolvedByLongestTnvedPrefix() throws IOException {
+        String mapping = "# test\n6403;shoes\n640399;clothes\n2402;tobacco\n";
+        CrptApi.ProductGroupIndex index = CrptApi.ProductGroupIndex.load(
+                new ByteArrayInputStream(mapping.getBytes(StandardCharsets.UTF_8)));
+        assertEquals("shoes", index.lookup("6403910000"));
+        assertEquals("clothes", index.lookup("6403990000"));
+        assertEquals("tobacco", index.lookup("2402"));
+        assertNull(index.lookup("640"));
+        assertNull(index.lookup("9999999999"));
+
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long allocatedBefore = threads.getCurrentThreadAllocatedBytes();
+        for (int i = 0; i < 100_000; i++) {
+            index.lookup("6403990000");
+        }
+        // Несколько десятков байт дает сам замер, на 100k поисков это не аллокации поиска
+        assertTrue(threads.getCurrentThreadAllocatedBytes() - allocatedBefore < 1_000);
+
+        CrptApi.Document document = sampleDocument(2);
+        assertEquals("clothes", document.getProductGroup());
+        document.getProducts()[0].setTnved_code("6403910000");
+        assertEquals("shoes", document.getProductGroup());
+        document.setProductGroup("milk");
+        assertEquals("milk", document.getProductGroup());
+    }
+
+    @Test
+    void mixedDocumentIsSplitByProductGroup() throws Exception {
+        Map<String, String> bodies = new ConcurrentHashMap<>();
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/api/v3/lk/documents/create", exchange -> {
+            String body = new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
+            bodies.put(exchange.getRequestURI().getQuery(), body);
+            respond(exchange, 200, "{}");
+        });
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.start();
+        try (CrptApi api = CrptApi.builder(TimeUnit.SECONDS, 100).baseUri(baseUri(server)).build()) {
+            CrptApi.Document document = sampleDocument(5);
+            document.getProducts()[1].setTnved_code("6403910000");
+            document.getProducts()[3].setTnved_code("0401100000");
+            document.getProducts()[4].setTnved_code("6403990000");
+            AtomicInteger signatures = new AtomicInteger();
+
+            List<CrptApi.SubmissionResult> results = api.createMixedDocument(document,
+                    part -> "sig-" + part.getProductGroup() + "-" + signatures.incrementAndGet());
+
+            assertEquals(3, results.size());
+            assertTrue(results.stream().allMatch(CrptApi.SubmissionResult::isSuccess));
+            assertEquals(3, signatures.get());
+            assertEquals(List.of("clothes", "shoes", "milk"),
+                    results.stream().map(result -> result.getDocument().getProductGroup()).toList());
+            assertEquals(2, bodies.get("pg=clothes").split("uit_code", -1).length - 1);
+            assertEquals(2, bodies.get("pg=shoes").split("uit_code", -1).length - 1);
+            assertTrue(bodies.get("pg=shoes").contains("sig-shoes-"));
+            assertEquals(1, bodies.get("pg=milk").split("uit_code", -1).length - 1);
+            assertEquals(1, document.splitByProductGroup().get(2).getProducts().length);
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    // Части смешанного документа получают свои doc_id и не склеиваются дедупликацией друг с другом
+    @Test
+    void splitPartsAreNotDeduplicatedWithEachOther() throws Exception {
+        ObjectMapper mapper = new ObjectMapper();
+        List<String> docIds = new ArrayList<>();
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/api/v3/lk/documents/create", exchange -> {
+            String document = mapper.readTree(exchange.getRequestBody()).get("product_document").asText();
+            synchronized (docIds) {
+                docIds.add(mapper.readTree(document).get("doc_id").asText());
+            }
+            respond(exchange, 200, "{}");
+        });
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.start();
+        try (CrptApi api = CrptApi.builder(TimeUnit.SECONDS, 100)
+                .baseUri(baseUri(server))
+                .deduplicate(Duration.ofMinutes(1), 1_000)
+                .build()) {
+            CrptApi.Document document = sampleDocument(4);
+            document.getProducts()[1].setTnved_code("6403910000");
+            document.getProducts()[2].setTnved_code("0401100000");
+            document.getProducts()[3].setTnved_code("0401100000");
+
+            List<CrptApi.Document> parts = document.splitByProductGroup();
+            assertEquals(List.of("test_doc_123-clothes", "test_doc_123-shoes", "test_doc_123-milk"),
+                    parts.stream().map(CrptApi.Document::getDoc_id).toList());
+
+            List<CrptApi.SubmissionResult> results = api.createMixedDocument(document, part -> "sig");
+            assertTrue(results.stream().allMatch(CrptApi.SubmissionResult::isSuccess));
+            synchronized (docIds) {
+                assertEquals(Set.of("test_doc_123-clothes", "test_doc_123-shoes", "test_doc_123-milk"),
+                        Set.copyOf(docIds));
+                assertEquals(3, docIds.size());
+            }
+
+            // Повтор всего документа подавляется по частям
+            assertTrue(api.createMixedDocument(document, part -> "sig").stream()
+                    .allMatch(CrptApi.SubmissionResult::isSuccess));
+            synchronized (docIds) {
+                assertEquals(3, docIds.size());
+            }
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    @Test
+    void latencyHistogramPercentilesWithinBucketPrecision() {
+        CrptApi.LatencyHistogram histogram = new CrptApi.LatencyHistogram();
+        for (long value = 1; value <= 10_000; value++) {
+            histogram.record(value * 1_000);
+        }
+
+        assertEquals(10_000, histogram.getCount());
+        long p50 = histogram.getValueAtPercentile(50);
+        long p99 = histogram.getValueAtPercentile(99);
+        assertTrue(p50 >= 5_000_000 && p50 <= 5_000_000 * 17 / 16, "p50 " + p50);
+        assertTrue(p99 >= 9_900_000 && p99 <= 9_900_000 * 17 / 16, "p99 " + p99);
+    }
+
+    @Test
+    void rejectsNonPositiveRequestLimit() {
+        assertThrows(IllegalArgumentException.class, () -> new CrptApi(TimeUnit.SECONDS, 0));
+    }
+
+    static String sign(byte[] data) {
+        return Base64.getEncoder().encodeToString(data);
+    }
+
+    static URI baseUri(HttpServer server) {
+        return URI.create("http://127.0.0.1:" + server.getAddress().getPort());
+    }
+
+    // Заглушка /api/v3/auth/cert/*: выдает token-N на N-й запрос ключа, если данные подписаны через sign()
+    static HttpServer authServer(AtomicInteger keyRequests, long keyDelayMillis) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/api/v3/auth/cert/key", exchange -> {
+            int n = keyRequests.incrementAndGet();
+            try {
+                Thread.sleep(keyDelayMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            respond(exchange, 200, "{\"uuid\":\"uuid-" + n + "\",\"data\":\"data-" + n + "\"}");
+        });
+        server.createContext("/api/v3/auth/cert/", exchange -> {
+            String body = new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
+            int n = keyRequests.get();
+            if (body.contains(sign(("data-" + n).getBytes(StandardCharsets.UTF_8)))) {
+                respond(exchange, 200, "{\"token\":\"token-" + n + "\"}");
+            } else {
+                respond(exchange, 403, "{\"error_message\":\"bad signature\"}");
+            }
+        });
+        server.start();
+        return server;
+    }
+
+    static void respond(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    static CrptApi.Document sampleDocument(int productCount) {
+        CrptApi.Document document = new CrptApi.Document();
+        document.setDescription("Test document");
+        document.setDoc_id("test_doc_123");
+        document.setDoc_status("DRAFT");
+        document.setDoc_type("LP_INTRODUCE_GOODS");
+        document.setOwner_inn("1234567894");
+        document.setParticipant_inn("0987654329");
+        document.setProducer_inn("1122334450");
+        document.setProduction_date("2024-01-01");
+        document.setProduction_type("PRODUCTION");
+        document.setReg_date("2024-01-01");
+        document.setReg_number("REG123");
+
+        CrptApi.Product[] products = new CrptApi.Product[productCount];
+        for (int i = 0; i < productCount; i++) {
+            CrptApi.Product product = new CrptApi.Product();
+            product.setCertificate_document("CERT123");
+            product.setCertificate_document_date("2024-01-01");
+            product.setCertificate_document_number("CERT123456");
+            product.setOwner_inn("1234567894");
+            product.setProducer_inn("1122334450");
+            product.setProduction_date("2024-01-01");
+            product.setTnved_code("6203420000");
+            product.setUit_code("UIT" + i);
+            product.setUitu_code("UITU" + i);
+            products[i] = product;
+        }
+        document.setProducts(products);
+        return document;
+    }
+}